@@ -0,0 +1,144 @@
+package in.cpp.picoimg;
+
+import android.annotation.SuppressLint;
+import android.os.Build;
+import android.os.SystemClock;
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Single ticker for all animated drawables, runs on the UI thread only
+class AnimClock
+{
+    private static final List<PicoDrawable> sDrawables = new ArrayList<>();
+    private static final List<PicoDrawable> sTicking = new ArrayList<>();
+    private static long sMinInterval;
+    private static long sLastTick;
+    private static long sScheduledTime;
+    private static boolean sVsyncPending;
+    private static Object sVsync;
+
+    // animation time stands still while paused
+    private static boolean sPaused;
+    private static long sPausedAt;
+    private static long sPausedTotal;
+
+    private static final Runnable sKick = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            sScheduledTime = 0;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN)
+            {
+                // align the tick with the display frame
+                if (!sVsyncPending)
+                {
+                    sVsyncPending = true;
+                    postVsync();
+                }
+            }
+            else
+                tick();
+        }
+    };
+
+    @SuppressLint("NewApi")
+    private static void postVsync()
+    {
+        if (null == sVsync)
+        {
+            sVsync = new Choreographer.FrameCallback()
+            {
+                @Override
+                public void doFrame(long frameTimeNanos)
+                {
+                    sVsyncPending = false;
+                    tick();
+                }
+            };
+        }
+        Choreographer.getInstance().postFrameCallback((Choreographer.FrameCallback) sVsync);
+    }
+
+    static long now()
+    {
+        return (sPaused ? sPausedAt : SystemClock.uptimeMillis()) - sPausedTotal;
+    }
+
+    static void pause()
+    {
+        if (sPaused)
+            return;
+        sPausedAt = SystemClock.uptimeMillis();
+        sPaused = true;
+        PicoImg.sHandler.removeCallbacks(sKick);
+        sScheduledTime = 0;
+    }
+
+    static void resume()
+    {
+        if (!sPaused)
+            return;
+        sPausedTotal += SystemClock.uptimeMillis() - sPausedAt;
+        sPaused = false;
+        if (!sDrawables.isEmpty())
+            reschedule(now());
+    }
+
+    static void setMaxFps(int fps)
+    {
+        sMinInterval = (fps > 0) ? (1000 / fps) : 0;
+    }
+
+    static void schedule(PicoDrawable d)
+    {
+        if (!d.mTickPending)
+        {
+            d.mTickPending = true;
+            sDrawables.add(d);
+        }
+        reschedule(d.mDrawableNextFrameTime);
+    }
+
+    private static void reschedule(long time)
+    {
+        if (sPaused)
+            return;
+        time = Math.max(time, sLastTick + sMinInterval);
+        if ((0 != sScheduledTime) && (sScheduledTime <= time))
+            return;
+        PicoImg.sHandler.removeCallbacks(sKick);
+        PicoImg.sHandler.postAtTime(sKick, time + sPausedTotal);
+        sScheduledTime = time;
+    }
+
+    private static void tick()
+    {
+        if (sPaused)
+            return;
+        long time = now();
+        sLastTick = time;
+
+        // step everything that is due, drawables will reschedule themselves when drawn
+        sTicking.addAll(sDrawables);
+        sDrawables.clear();
+        long next = Long.MAX_VALUE;
+        for (PicoDrawable d: sTicking)
+        {
+            if (d.onAnimationTick(time))
+                d.mTickPending = false;
+            else
+            {
+                sDrawables.add(d);
+                next = Math.min(next, d.mDrawableNextFrameTime);
+            }
+        }
+        sTicking.clear();
+
+        // someone is still waiting
+        if (!sDrawables.isEmpty())
+            reschedule(next);
+    }
+}
@@ -0,0 +1,1139 @@
+package in.cpp.picoimg;
+
+import android.annotation.SuppressLint;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+import android.os.Build;
+import android.os.MemoryFile;
+import android.os.SystemClock;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+abstract class AnimState extends BaseState
+{
+    static final int DISPOSE_NONE = 0;
+    static final int DISPOSE_BACKGROUND = 1;
+    static final int DISPOSE_PREVIOUS = 2;
+
+    private static final int PUBLISH_INTERVAL = 100;
+    private static final int BAND_BYTES = 64 * 1024;
+
+    // canvas, disposal backup, current and preloaded frame, for the memory budget
+    static final int CANVAS_BUFFERS = 4;
+
+    static class Frame
+    {
+        int mOffX;
+        int mOffY;
+        int mWidth;
+        int mHeight;
+        int mDelay;
+        int mDispose;
+        boolean mBlendSource;
+        boolean mOpaque;
+        SoftReference<Bitmap> mBitmap;
+    }
+
+    // resources living outside of the java heap, released once the state is collected or dropped
+    static class Resources
+    {
+        FileChannel mSource;
+        OffHeapStore mStore;
+        MemoryFile mPrevStore;
+        InputStream mSuspendedInput;
+
+        synchronized void release()
+        {
+            try
+            {
+                if (null != mSuspendedInput)
+                    mSuspendedInput.close();
+            }
+            catch (Throwable e)
+            {
+                e.printStackTrace();
+            }
+            mSuspendedInput = null;
+            try
+            {
+                if (null != mSource)
+                    mSource.close();
+            }
+            catch (Throwable e)
+            {
+                e.printStackTrace();
+            }
+            mSource = null;
+            if (null != mStore)
+                mStore.release();
+            mStore = null;
+            releasePrevStore();
+        }
+
+        synchronized void releasePrevStore()
+        {
+            if (null != mPrevStore)
+            {
+                OffHeapStore.sUsage.addAndGet(-mPrevStore.length());
+                mPrevStore.close();
+                mPrevStore = null;
+            }
+        }
+    }
+
+    // reopens the file for resumeLoading(), a suspended state doesn't hold its stream
+    interface SourceOpener
+    {
+        InputStream open() throws IOException;
+    }
+
+    // every state is tracked, cached or not, so a replaced or dropped cache entry doesn't keep its resources
+    private static final ReferenceQueue<AnimState> sCollected = new ReferenceQueue<>();
+    private static final Set<ResourcesRef> sLive = new HashSet<>();
+
+    private static class ResourcesRef extends WeakReference<AnimState>
+    {
+        final Resources mResources;
+
+        ResourcesRef(AnimState state)
+        {
+            super(state, sCollected);
+            mResources = state.mResources;
+        }
+    }
+
+    static
+    {
+        // ashmem goes back as soon as the gc has evicted the state from the ram cache, not on the next poll
+        Thread releaser = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                while (true)
+                {
+                    try
+                    {
+                        release((ResourcesRef) sCollected.remove());
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                }
+            }
+        }, "PicoImg-release");
+        releaser.setDaemon(true);
+        releaser.start();
+    }
+
+    private static void release(ResourcesRef ref)
+    {
+        synchronized (sLive)
+        {
+            sLive.remove(ref);
+        }
+        ref.mResources.release();
+    }
+
+    static void releaseCollected()
+    {
+        ResourcesRef ref;
+        while (null != (ref = (ResourcesRef) sCollected.poll()))
+            release(ref);
+    }
+
+    static long getHeapUsage()
+    {
+        releaseCollected();
+        List<ResourcesRef> refs;
+        synchronized (sLive)
+        {
+            refs = new ArrayList<>(sLive);
+        }
+        long usage = 0;
+        for (ResourcesRef ref: refs)
+        {
+            AnimState state = ref.get();
+            if (null != state)
+                usage += state.getHeapBytes();
+        }
+        return usage;
+    }
+
+    // source data
+    List<Frame> mFrames;
+    final Resources mResources = new Resources();
+    final boolean mOffHeap;
+    private final Bitmap.Config mConfig;
+    private final boolean mAutoConfig;
+
+    // progressive loading, set while the rest of the file is parsed in background
+    InputStream mParseInput;
+    boolean mLoading;
+    boolean mSuspended;
+    private SourceOpener mReopen;
+
+    // timeline
+    private int[] mTimeline;
+    private boolean[] mKeyFrames;
+    private long mStartTime;
+
+    // composited canvas snapshots
+    private int mSnapshotMax;
+    private int mSnapshotInterval;
+    private SoftReference<Bitmap>[] mSnapshots;
+
+    // every composited frame of a small animation, later loops only flip between them
+    private long mRingMaxPixels;
+    private Bitmap[] mRing;
+
+    // playback
+    private Canvas mCanvas;
+    private int mCanvasFrame;
+    private Bitmap mDisplay;
+    int mCanvasWidth;
+    int mCanvasHeight;
+    int mCanvasPixelBytes;
+    private int mPrevDispose;
+    Rect mPrevRect;
+    private Rect mPrevSrcRect;
+    private Bitmap mPrevPixels;
+    private Canvas mPrevCanvas;
+    private Paint mCopyPaint;
+    private Bitmap mBand;
+    private Canvas mBandCanvas;
+    private byte[] mBandBytes;
+    private ByteBuffer mBandBuffer;
+    private Rect mBandSrc;
+    private Rect mBandDst;
+    // bytes copied into dispose-to-previous backups and back
+    long mBackupBytes;
+
+    AnimState(Bitmap.Config config, int stateFlags)
+    {
+        mOffHeap = (0 != (stateFlags & FLAG_OFF_HEAP));
+        mConfig = config;
+        mAutoConfig = (0 != (stateFlags & FLAG_AUTO_CONFIG));
+        releaseCollected();
+        synchronized (sLive)
+        {
+            sLive.add(new ResourcesRef(this));
+        }
+    }
+
+    abstract Bitmap loadFrame(Frame f);
+
+    // compressed frame data kept on the java heap
+    abstract int getHeapBytes(Frame f);
+
+    // returns the next complete frame or null at the end of file
+    abstract Frame parseFrame(InputStream inp) throws IOException;
+
+    // moves the frame data to the off-heap store
+    abstract void packFrame(Frame f) throws IOException;
+
+    long getHeapBytes()
+    {
+        // frames are only appended, a racing count is off by a batch at most
+        List<Frame> frames = mFrames;
+        long bytes = 0;
+        if (null != frames)
+            for (int i = 0; i < frames.size(); ++i)
+                bytes += getHeapBytes(frames.get(i));
+        // bitmap pixels live on the java heap before Oreo
+        Bitmap prev = mPrevPixels;
+        if ((null != prev) && (Build.VERSION.SDK_INT < Build.VERSION_CODES.O))
+            bytes += (long) prev.getRowBytes() * prev.getHeight();
+        byte[] band = mBandBytes;
+        if (null != band)
+            bytes += (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) ? 2L * band.length : band.length;
+        return bytes;
+    }
+
+    void release()
+    {
+        mResources.release();
+    }
+
+    //region SOURCE
+    void openSource(File file) throws IOException
+    {
+        mResources.mSource = new RandomAccessFile(file, "r").getChannel();
+    }
+
+    long storeData(List<byte[]> data, int from) throws IOException
+    {
+        // moves frame data off the heap, returns its position for readSource()
+        if (null == mResources.mStore)
+            mResources.mStore = new OffHeapStore();
+        long pos = mResources.mStore.getSize();
+        for (int i = from; i < data.size(); ++i)
+            mResources.mStore.write(data.get(i), 0, data.get(i).length);
+        return pos;
+    }
+
+    void readSource(long pos, byte[] buffer, int offset, int length) throws IOException
+    {
+        if (null != mResources.mStore)
+        {
+            mResources.mStore.read(pos, buffer, offset, length);
+            return;
+        }
+        // positional reads don't touch the channel position, so preloader may run them concurrently
+        ByteBuffer buf = ByteBuffer.wrap(buffer, offset, length);
+        while (buf.hasRemaining())
+            if (mResources.mSource.read(buf, pos + buf.position() - offset) < 0)
+                throw new IOException("Unexpected end of file");
+    }
+
+    static void skipBytes(InputStream inp, long length) throws IOException
+    {
+        while (length > 0)
+        {
+            long res = inp.skip(length);
+            if (res <= 0)
+            {
+                if (inp.read() < 0)
+                    throw new IOException("Unexpected end of file");
+                res = 1;
+            }
+            length -= res;
+        }
+    }
+    //endregion
+
+    //region PROGRESSIVE
+    boolean startLoading()
+    {
+        // takes over the input stream, false if the file is parsed already
+        if (null == mParseInput)
+            return false;
+        PicoImg.sExecutor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                loadRemaining();
+            }
+        });
+        return true;
+    }
+
+    boolean suspendLoading(SourceOpener opener)
+    {
+        // first frame stays on the screen, the rest waits for resumeLoading()
+        if (null == mParseInput)
+            return false;
+        mSuspended = true;
+        mNextFrameTime = 0;
+        // a grid of suspended states would run out of file descriptors, reopen at the parsed offset instead
+        if ((null != opener) && (mParseInput instanceof CountingInputStream))
+        {
+            try
+            {
+                mParseInput.close();
+                mReopen = opener;
+                return true;
+            }
+            catch (Throwable e)
+            {
+                e.printStackTrace();
+            }
+        }
+        // temporary file is gone once the request is done, keep reading it through the open stream
+        mResources.mSuspendedInput = mParseInput;
+        return true;
+    }
+
+    boolean resumeLoading()
+    {
+        if (!mSuspended)
+            return false;
+        mSuspended = false;
+        mResources.mSuspendedInput = null;
+        mNextFrameTime = 1;
+        return startLoading();
+    }
+
+    private void loadRemaining()
+    {
+        List<Frame> batch = new ArrayList<>();
+        long published = SystemClock.uptimeMillis();
+        try
+        {
+            // suspended stream has been closed, continue from the same offset
+            if (null != mReopen)
+            {
+                CountingInputStream counter = (CountingInputStream) mParseInput;
+                InputStream inp = mReopen.open();
+                mReopen = null;
+                skipBytes(inp, counter.getPosition());
+                counter.swap(new BufferedInputStream(inp));
+            }
+            Frame f;
+            while (null != (f = parseFrame(mParseInput)))
+            {
+                if (mOffHeap)
+                    packFrame(f);
+                batch.add(f);
+                // don't flood the ui thread, hand the frames over in batches
+                if (SystemClock.uptimeMillis() - published >= PUBLISH_INTERVAL)
+                {
+                    publishFrames(batch, false);
+                    batch = new ArrayList<>();
+                    published = SystemClock.uptimeMillis();
+                }
+            }
+        }
+        catch (Throwable e)
+        {
+            // truncated file, play only the frames we've got
+            e.printStackTrace();
+        }
+        try
+        {
+            mParseInput.close();
+        }
+        catch (Throwable e)
+        {
+            e.printStackTrace();
+        }
+        mParseInput = null;
+        publishFrames(batch, true);
+    }
+
+    private void publishFrames(final List<Frame> frames, final boolean done)
+    {
+        PicoImg.sHandler.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                // the preloader may still use the old list, replace it instead of appending
+                List<Frame> list = new ArrayList<>(mFrames.size() + frames.size());
+                list.addAll(mFrames);
+                list.addAll(frames);
+                mFrames = list;
+                mLoading = !done;
+
+                // turned out to be a still image
+                if (done && (mFrames.size() == 1))
+                {
+                    mFrames = null;
+                    mNextFrameTime = 0;
+                    mResources.release();
+                    return;
+                }
+                buildTimeline();
+                allocateSnapshots();
+                allocateRing();
+            }
+        });
+    }
+    //endregion
+
+    int getClearColor(Frame f)
+    {
+        return Color.TRANSPARENT;
+    }
+
+    //region TIMELINE
+    private boolean coversCanvas(Frame f)
+    {
+        return (f.mOffX == 0) && (f.mOffY == 0) && ((f.mWidth >> mScaleShift) >= mWidth) && ((f.mHeight >> mScaleShift) >= mHeight);
+    }
+
+    private void buildTimeline()
+    {
+        int count = mFrames.size();
+        mTimeline = new int[count + 1];
+        mKeyFrames = new boolean[count];
+        for (int i = 0; i < count; ++i)
+        {
+            Frame f = mFrames.get(i);
+            mTimeline[i + 1] = mTimeline[i] + Math.max(1, f.mDelay);
+            // keyframe doesn't depend on the canvas contents left by the previous frames
+            if (i == 0)
+                mKeyFrames[i] = true;
+            else if (coversCanvas(f) && (f.mBlendSource || f.mOpaque))
+                mKeyFrames[i] = true;
+            else
+            {
+                Frame prev = mFrames.get(i - 1);
+                mKeyFrames[i] = (prev.mDispose == DISPOSE_BACKGROUND) && coversCanvas(prev);
+            }
+        }
+    }
+
+    int getDuration()
+    {
+        return isAnimated() ? mTimeline[mFrames.size()] : 0;
+    }
+
+    int getFrameCount()
+    {
+        return (null != mFrames) ? mFrames.size() : 0;
+    }
+
+    private int findFrame(int time)
+    {
+        // the last frame which starts at or before the given time
+        int lo = 0, hi = mFrames.size() - 1;
+        while (lo < hi)
+        {
+            int mid = (lo + hi + 1) >>> 1;
+            if (mTimeline[mid] <= time)
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+        return lo;
+    }
+    //endregion
+
+    //region SNAPSHOTS
+    void enableSnapshots(int maxSnapshots)
+    {
+        mSnapshotMax = Math.max(mSnapshotMax, maxSnapshots);
+        allocateSnapshots();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void allocateSnapshots()
+    {
+        // frame count isn't final until loading is done
+        if (!isAnimated() || mLoading || (mSnapshotMax <= 0))
+            return;
+        int interval = Math.max(1, (mFrames.size() + mSnapshotMax - 1) / mSnapshotMax);
+        if ((null != mSnapshots) && (mSnapshotInterval <= interval))
+            return;
+        mSnapshotInterval = interval;
+        mSnapshots = new SoftReference[(mFrames.size() + interval - 1) / interval];
+    }
+
+    private int findSnapshot(int from, int target)
+    {
+        // the latest snapshot in (from, target]
+        if (null == mSnapshots)
+            return -1;
+        for (int i = target / mSnapshotInterval; (i >= 0) && (i * mSnapshotInterval > from); --i)
+            if ((null != mSnapshots[i]) && (null != mSnapshots[i].get()))
+                return i * mSnapshotInterval;
+        return -1;
+    }
+
+    private void takeSnapshot(int frame)
+    {
+        // dispose-to-previous would need the canvas from before the frame as well, skip those
+        if ((null == mSnapshots) || (0 != frame % mSnapshotInterval) || mKeyFrames[frame] || (mFrames.get(frame).mDispose == DISPOSE_PREVIOUS))
+            return;
+        SoftReference<Bitmap> ref = mSnapshots[frame / mSnapshotInterval];
+        if ((null != ref) && (null != ref.get()))
+            return;
+        Bitmap bm = mOutput.copy(mOutput.getConfig(), false);
+        if (null != bm)
+            mSnapshots[frame / mSnapshotInterval] = new SoftReference<>(bm);
+    }
+
+    private boolean restoreSnapshot(int frame)
+    {
+        SoftReference<Bitmap> ref = mSnapshots[frame / mSnapshotInterval];
+        Bitmap bm = (null != ref) ? ref.get() : null;
+        if (null == bm)
+            return false;
+        mCanvas.drawBitmap(bm, 0, 0, mCopyPaint);
+        Frame f = mFrames.get(frame);
+        mPrevDispose = f.mDispose;
+        if (null == mPrevRect)
+            mPrevRect = new Rect();
+        int fx = f.mOffX >> mScaleShift, fy = f.mOffY >> mScaleShift;
+        mPrevRect.set(fx, fy, fx + (f.mWidth >> mScaleShift), fy + (f.mHeight >> mScaleShift));
+        return true;
+    }
+    //endregion
+
+    //region RING
+    void enableRing(long maxPixels)
+    {
+        mRingMaxPixels = Math.max(mRingMaxPixels, maxPixels);
+        allocateRing();
+    }
+
+    private void allocateRing()
+    {
+        // frame count isn't final until loading is done
+        if (!isAnimated() || mLoading || (null != mRing) || ((long) mWidth * mHeight * mFrames.size() > mRingMaxPixels))
+            return;
+        mRing = new Bitmap[mFrames.size()];
+    }
+
+    private void fillRing(int frame)
+    {
+        if ((null == mRing) || (null != mRing[frame]))
+            return;
+        // both the canvas and the transformed frame are reused for the next frames
+        Bitmap bm = (null != mDisplay) ? mDisplay : mOutput;
+        mRing[frame] = bm.copy(bm.getConfig(), false);
+    }
+
+    private boolean inRing(int frame)
+    {
+        return (null != mRing) && (null != mRing[frame]);
+    }
+    //endregion
+
+    //region RENDERER
+    private volatile boolean mPreloadRunning;
+    private int mPreloadFrame;
+    private final Runnable mPreloadRunnable = new Runnable()
+    {
+        @Override public void run()
+        {
+            Frame f = mFrames.get(mPreloadFrame);
+            Bitmap bm = loadFrame(f);
+            if (bm != null)
+                f.mBitmap = new SoftReference<>(bm);
+            mPreloadRunning = false;
+        }
+    };
+
+    // transformed animation composes and transforms the next frame in background, the screen keeps mDisplay meanwhile
+    private Bitmap mDisplayNext;
+    private int mPreparedFrame = -1;
+    private Canvas mTransformCanvas;
+    private Bitmap mTransformTarget;
+    private final Runnable mPrepareRunnable = new Runnable()
+    {
+        @Override public void run()
+        {
+            int frame = mPreloadFrame;
+            try
+            {
+                drawCanvas(frame);
+                mDisplayNext = transformCanvas(mDisplayNext);
+                mPreparedFrame = frame;
+            }
+            catch (Throwable e)
+            {
+                e.printStackTrace();
+            }
+            mPreloadRunning = false;
+        }
+    };
+
+    @SuppressLint("NewApi")
+    private Bitmap.Config getCanvasConfig()
+    {
+        // canvas has to stay mutable, hardware bitmaps can't be drawn to
+        if ((null != mConfig) && ((Build.VERSION.SDK_INT < Build.VERSION_CODES.O) || (Bitmap.Config.HARDWARE != mConfig)))
+            return mConfig;
+        if (!mAutoConfig || mLoading)
+            return Bitmap.Config.ARGB_8888;
+        // nothing transparent is ever drawn, alpha channel is a waste
+        for (Frame f: mFrames)
+            if (!f.mOpaque || (Color.alpha(getClearColor(f)) != 255))
+                return Bitmap.Config.ARGB_8888;
+        return Bitmap.Config.RGB_565;
+    }
+
+    Bitmap.Config getFrameConfig(Frame f)
+    {
+        // frames are drawn over the canvas, opaque ones don't need more than it keeps
+        if (!f.mOpaque)
+            return null;
+        Bitmap.Config config = (null != mCanvas) ? mOutput.getConfig() : ((null != mFrames) ? getCanvasConfig() : null);
+        return (Bitmap.Config.RGB_565 == config) ? config : null;
+    }
+
+    void initPlayback()
+    {
+        Bitmap.Config config = getCanvasConfig();
+        mOutput = Bitmap.createBitmap(mWidth, mHeight, config);
+        mCanvas = new Canvas(mOutput);
+        mCanvasWidth = mWidth;
+        mCanvasHeight = mHeight;
+        mCanvasPixelBytes = (Bitmap.Config.RGB_565 == config) ? 2 : 4;
+        mCopyPaint = new Paint();
+        mCopyPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+        mPlayFrame = mCanvasFrame = -1;
+        buildTimeline();
+        compose(0);
+        // the clock is started by the first step(), ask drawables to do it right away
+        mNextFrameTime = 1;
+    }
+
+    // pixels a dispose-to-previous backup copies each way, the part of the frame inside the canvas
+    static int backupArea(int left, int top, int right, int bottom, int width, int height)
+    {
+        int w = Math.min(right, width) - Math.max(left, 0);
+        int h = Math.min(bottom, height) - Math.max(top, 0);
+        return ((w > 0) && (h > 0)) ? w * h : 0;
+    }
+
+    void savePrevPixels()
+    {
+        // only the part of the frame inside the canvas is going to change
+        Rect r = mPrevRect;
+        int area = backupArea(r.left, r.top, r.right, r.bottom, mCanvasWidth, mCanvasHeight);
+        if (0 == area)
+        {
+            r.left = r.top = r.right = r.bottom = 0;
+            return;
+        }
+        r.left = Math.max(r.left, 0);
+        r.top = Math.max(r.top, 0);
+        r.right = Math.min(r.right, mCanvasWidth);
+        r.bottom = Math.min(r.bottom, mCanvasHeight);
+        mBackupBytes += (long) area * mCanvasPixelBytes;
+        copyToBackup(r.right - r.left, r.bottom - r.top);
+    }
+
+    void restorePrevPixels()
+    {
+        Rect r = mPrevRect;
+        if ((r.right <= r.left) || (r.bottom <= r.top))
+            return;
+        mBackupBytes += (long) (r.right - r.left) * (r.bottom - r.top) * mCanvasPixelBytes;
+        copyFromBackup(r.right - r.left, r.bottom - r.top);
+    }
+
+    // pixel copies of the clipped mPrevRect, the accounting stays in the callers
+    void copyToBackup(int width, int height)
+    {
+        if (mOffHeap)
+        {
+            savePrevPixelsOffHeap(width, height);
+            return;
+        }
+        if ((null == mPrevPixels) || (mPrevPixels.getWidth() < width) || (mPrevPixels.getHeight() < height))
+        {
+            int w = width, h = height;
+            if (null != mPrevPixels)
+            {
+                w = Math.max(w, mPrevPixels.getWidth());
+                h = Math.max(h, mPrevPixels.getHeight());
+            }
+            mPrevPixels = Bitmap.createBitmap(w, h, mOutput.getConfig());
+            mPrevCanvas = new Canvas(mPrevPixels);
+            mPrevSrcRect = new Rect();
+        }
+        mPrevSrcRect.set(0, 0, width, height);
+        mPrevCanvas.drawBitmap(mOutput, mPrevRect, mPrevSrcRect, mCopyPaint);
+    }
+
+    @SuppressLint("NewApi")
+    private Bitmap getBand(int width)
+    {
+        // a few rows at a time go through it, the backup itself stays in ashmem
+        int rows = Math.max(1, Math.min(mCanvasHeight, BAND_BYTES / (width * mCanvasPixelBytes)));
+        if ((null != mBand) && (mBand.getWidth() == width) && (mBand.getHeight() == rows))
+            return mBand;
+        if ((null != mBand) && (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT))
+        {
+            // allocated for the canvas width, narrower bands fit into it
+            mBand.reconfigure(width, rows, mBand.getConfig());
+        }
+        else
+        {
+            if (null != mBand)
+                mBand.recycle();
+            boolean reusable = (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT);
+            int w = reusable ? mCanvasWidth : width;
+            int h = reusable ? Math.max(1, (BAND_BYTES + w * mCanvasPixelBytes - 1) / (w * mCanvasPixelBytes)) : rows;
+            mBand = Bitmap.createBitmap(w, h, mOutput.getConfig());
+            mBandBytes = new byte[mBand.getRowBytes() * h];
+            mBandBuffer = ByteBuffer.wrap(mBandBytes);
+            mBandSrc = new Rect();
+            mBandDst = new Rect();
+            if ((w != width) || (h != rows))
+                mBand.reconfigure(width, rows, mBand.getConfig());
+        }
+        mBandCanvas = new Canvas(mBand);
+        return mBand;
+    }
+
+    private void savePrevPixelsOffHeap(int width, int height)
+    {
+        // premultiplied pixels are stored as they are, getPixels() would round the semi-transparent ones
+        try
+        {
+            Bitmap band = getBand(width);
+            int rows = band.getHeight(), rowBytes = band.getRowBytes();
+            // grows to the largest area seen, like the heap backup
+            int size = rowBytes * height;
+            if ((null == mResources.mPrevStore) || (mResources.mPrevStore.length() < size))
+            {
+                mResources.releasePrevStore();
+                mResources.mPrevStore = new MemoryFile("picoimg", size);
+                OffHeapStore.sUsage.addAndGet(size);
+            }
+            for (int y = 0; y < height; y += rows)
+            {
+                int count = Math.min(rows, height - y);
+                mBandSrc.set(mPrevRect.left, mPrevRect.top + y, mPrevRect.right, mPrevRect.top + y + count);
+                mBandDst.set(0, 0, width, count);
+                mBandCanvas.drawBitmap(mOutput, mBandSrc, mBandDst, mCopyPaint);
+                mBandBuffer.clear();
+                band.copyPixelsToBuffer(mBandBuffer);
+                mResources.mPrevStore.writeBytes(mBandBytes, 0, y * rowBytes, count * rowBytes);
+            }
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+            mPrevRect.setEmpty();
+        }
+    }
+
+    void copyFromBackup(int width, int height)
+    {
+        if (!mOffHeap)
+        {
+            mCanvas.drawBitmap(mPrevPixels, mPrevSrcRect, mPrevRect, mCopyPaint);
+            return;
+        }
+        try
+        {
+            Bitmap band = getBand(width);
+            int rows = band.getHeight(), rowBytes = band.getRowBytes();
+            for (int y = 0; y < height; y += rows)
+            {
+                int count = Math.min(rows, height - y);
+                mResources.mPrevStore.readBytes(mBandBytes, y * rowBytes, 0, count * rowBytes);
+                mBandBuffer.clear();
+                band.copyPixelsFromBuffer(mBandBuffer);
+                mBandSrc.set(0, 0, width, count);
+                mBandDst.set(mPrevRect.left, mPrevRect.top + y, mPrevRect.right, mPrevRect.top + y + count);
+                mCanvas.drawBitmap(band, mBandSrc, mBandDst, mCopyPaint);
+            }
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    private Bitmap getFrameBitmap(Frame f)
+    {
+        Bitmap bm = null;
+        if (null != f.mBitmap)
+            bm = f.mBitmap.get();
+        if (bm == null)
+        {
+            bm = loadFrame(f);
+            if (bm != null)
+                f.mBitmap = new SoftReference<>(bm);
+        }
+        return bm;
+    }
+
+    private void compose(int target)
+    {
+        // nothing to draw, just show the stored frame. The canvas stays where it was
+        if (!inRing(target))
+        {
+            drawCanvas(target);
+            transformFrame();
+        }
+        mPlayFrame = target;
+        fillRing(target);
+    }
+
+    private void drawCanvas(int target)
+    {
+        // start from the nearest keyframe, snapshot or continue from the frame we already have
+        int start = target;
+        while (!mKeyFrames[start])
+            --start;
+        boolean reset = true;
+        if ((mCanvasFrame >= start) && (mCanvasFrame < target))
+        {
+            start = mCanvasFrame + 1;
+            reset = false;
+        }
+        int snapshot = findSnapshot(start - 1, target);
+        if ((snapshot >= 0) && restoreSnapshot(snapshot))
+        {
+            if (snapshot == target)
+            {
+                mCanvasFrame = target;
+                return;
+            }
+            start = snapshot + 1;
+            reset = false;
+        }
+
+        for (int i = start; i <= target; ++i)
+        {
+            Frame f = mFrames.get(i);
+            int fx = f.mOffX >> mScaleShift, fy = f.mOffY >> mScaleShift, fw = f.mWidth >> mScaleShift, fh = f.mHeight >> mScaleShift;
+
+            // finish previous frame disposal
+            if (reset && (i == start))
+            {
+                mCanvas.drawColor(getClearColor(f), PorterDuff.Mode.SRC);
+                mPrevDispose = DISPOSE_NONE;
+            }
+            if (mPrevDispose == DISPOSE_PREVIOUS)
+                restorePrevPixels();
+            else if (mPrevDispose == DISPOSE_BACKGROUND)
+            {
+                mCanvas.save();
+                mCanvas.clipRect(mPrevRect);
+                mCanvas.drawColor(getClearColor(f), PorterDuff.Mode.SRC);
+                mCanvas.restore();
+            }
+            mPrevDispose = DISPOSE_NONE;
+
+            // frames we're skipping over only matter for what they leave behind,
+            // and dispose-to-previous leaves nothing
+            boolean visible = (i == target);
+            if (!visible && (f.mDispose == DISPOSE_PREVIOUS))
+                continue;
+
+            // prepare new frame disposal
+            mPrevDispose = f.mDispose;
+            if (null == mPrevRect)
+                mPrevRect = new Rect();
+            mPrevRect.set(fx, fy, fx + fw, fy + fh);
+            if (mPrevDispose == DISPOSE_PREVIOUS)
+                savePrevPixels();
+            else if (mPrevDispose == DISPOSE_BACKGROUND)
+            {
+                // the area is cleared before the next frame anyway
+                if (!visible)
+                    continue;
+            }
+
+            // prepare new frame composition
+            if (f.mBlendSource)
+            {
+                mCanvas.save();
+                mCanvas.clipRect(fx, fy, fx + fw, fy + fh);
+                mCanvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+                mCanvas.restore();
+            }
+
+            // draw the frame
+            Bitmap bm = getFrameBitmap(f);
+            if (null != bm)
+                mCanvas.drawBitmap(bm, fx, fy, null);
+        }
+        mCanvasFrame = target;
+        takeSnapshot(target);
+    }
+
+    private void transformFrame()
+    {
+        // canvas keeps the composition for the next frames, the result goes to a separate bitmap
+        if (null != mTransforms)
+            mDisplay = transformCanvas(mDisplay);
+    }
+
+    private Bitmap transformCanvas(Bitmap into)
+    {
+        // the result is copied into a bitmap of ours that is reused frame after frame
+        Bitmap out = transform(mOutput);
+        if ((null == into) || (into.getWidth() != out.getWidth()) || (into.getHeight() != out.getHeight()))
+        {
+            into = Bitmap.createBitmap(out.getWidth(), out.getHeight(), (null != out.getConfig()) ? out.getConfig() : Bitmap.Config.ARGB_8888);
+            mTransformCanvas = null;
+        }
+        if ((null == mTransformCanvas) || (into != mTransformTarget))
+        {
+            mTransformCanvas = new Canvas(into);
+            mTransformTarget = into;
+        }
+        mTransformCanvas.drawBitmap(out, 0, 0, mCopyPaint);
+        if (out != mOutput)
+            out.recycle();
+        return into;
+    }
+
+    private void showPrepared()
+    {
+        // the back buffer holds the next frame, the front one becomes the next back buffer
+        Bitmap bm = mDisplay;
+        mDisplay = mDisplayNext;
+        mDisplayNext = bm;
+        mPlayFrame = mPreparedFrame;
+        mPreparedFrame = -1;
+        fillRing(mPlayFrame);
+    }
+
+    private void prepare(int frame)
+    {
+        mPreloadFrame = frame;
+        mPreparedFrame = -1;
+        mPreloadRunning = true;
+        PicoImg.sExecutor.execute(mPrepareRunnable);
+    }
+
+    @Override
+    Bitmap getBitmap()
+    {
+        if ((mPlayFrame >= 0) && inRing(mPlayFrame))
+            return mRing[mPlayFrame];
+        return (null != mDisplay) ? mDisplay : mOutput;
+    }
+
+    @Override
+    void applyTransforms(List<PicoImgRequest.Transformation> transforms, boolean hardware)
+    {
+        // still image is transformed once
+        if (null == mFrames)
+        {
+            super.applyTransforms(transforms, hardware);
+            return;
+        }
+        mTransforms = transforms;
+        transformFrame();
+    }
+
+    void seekTo(int millis)
+    {
+        if (!isAnimated())
+            return;
+
+        // keep the loop counter, move the clock to the requested position
+        long time = AnimClock.now();
+        int duration = mTimeline[mFrames.size()];
+        int pos = millis % duration;
+        long loop = (0 != mStartTime) ? ((time - mStartTime) / duration) : 0;
+        mStartTime = time - loop * duration - pos;
+
+        // the decoder is busy with the preload or the frame has to be transformed in background, let the next step() do the job
+        if (mPreloadRunning || (null != mTransforms))
+        {
+            mNextFrameTime = time;
+            return;
+        }
+
+        int target = findFrame(pos);
+        if (target != mPlayFrame)
+            compose(target);
+        mNextFrameTime = mStartTime + loop * duration + mTimeline[target + 1];
+    }
+
+    int getFrameTime(int frame)
+    {
+        return isAnimated() ? mTimeline[Math.max(0, Math.min(frame, mFrames.size() - 1))] : 0;
+    }
+
+    @Override
+    protected void step()
+    {
+        // not animated? return silently
+        if (!isAnimated())
+            return;
+
+        // we're early, probably we have multiple active drawables.
+        // do nothing
+        long time = AnimClock.now();
+        if (time < mNextFrameTime)
+            return;
+
+        // first step ever, start the clock at the frame we're showing
+        if (0 == mStartTime)
+            mStartTime = time - mTimeline[Math.max(0, mPlayFrame)];
+
+        // find the frame which should be on the screen now
+        int count = mFrames.size();
+        int duration = mTimeline[count];
+        long elapsed = time - mStartTime;
+        if (mLoading && (elapsed >= duration))
+        {
+            // ran out of loaded frames, hold the last one until the parser catches up
+            elapsed = mTimeline[count - 1];
+            mStartTime = time - elapsed;
+        }
+        int loop = (int) (elapsed / duration);
+        int target = findFrame((int) (elapsed % duration));
+        mNextFrameTime = mStartTime + (long) loop * duration + mTimeline[target + 1];
+        mPlayLoop = (!mLoading && (target == count - 1)) ? (loop + 1) : loop;
+
+        // transformations are too slow for the ui thread, the frame is composed and transformed in background
+        if (null != mTransforms)
+        {
+            stepTransformed(target, count, time);
+            return;
+        }
+
+        // frame is still preloading
+        // we're already updated Next Frame Time, so just return
+        if (mPreloadRunning)
+            return;
+
+        // catch up with the clock
+        if (target != mPlayFrame)
+            compose(target);
+
+        // preload bitmap for the next frame
+        int next = (target + 1) % count;
+        Frame f = mFrames.get(next);
+        if (!inRing(next) && ((null == f.mBitmap) || (null == f.mBitmap.get())))
+        {
+            mPreloadFrame = next;
+            mPreloadRunning = true;
+            PicoImg.sExecutor.execute(mPreloadRunnable);
+        }
+    }
+
+    private void stepTransformed(int target, int count, long time)
+    {
+        if (target != mPlayFrame)
+        {
+            if (inRing(target))
+            {
+                mPlayFrame = target;
+            }
+            else if (!mPreloadRunning && (target == mPreparedFrame))
+                showPrepared();
+            else
+            {
+                // late or seeking, hold the current frame and check again on the next tick
+                if (!mPreloadRunning)
+                    prepare(target);
+                mNextFrameTime = time;
+                return;
+            }
+        }
+
+        // get the next frame ready while this one is on the screen
+        int next = (target + 1) % count;
+        if (!mPreloadRunning && !inRing(next) && (next != mPreparedFrame))
+            prepare(next);
+    }
+    //endregion
+
+    // bitmaps the playback keeps per canvas, known from the parsed frames before mFrames is set
+    static int canvasBuffers(int frameCount, boolean loading)
+    {
+        return ((frameCount > 1) || loading) ? CANVAS_BUFFERS : 1;
+    }
+
+    @Override
+    boolean isAnimated()
+    {
+        return (null != mFrames) && !mSuspended && ((mFrames.size() > 1) || mLoading);
+    }
+}
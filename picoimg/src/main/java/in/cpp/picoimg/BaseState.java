@@ -1,203 +1,470 @@
 package in.cpp.picoimg;
 
+import android.annotation.SuppressLint;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
 import android.graphics.drawable.Drawable;
+import android.os.Build;
 import android.text.TextUtils;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.List;
 
 class BaseState extends Drawable.ConstantState
 {
+    static final int FLAG_OFF_HEAP = 1;
+    static final int FLAG_PROGRESSIVE = 2;
+    static final int FLAG_EXACT_SIZE = 4;
+    static final int FLAG_TILED = 8;
+    static final int FLAG_AUTO_CONFIG = 16;
+    static final int FLAG_FIRST_FRAME = 32;
+    static final int FLAG_SOFTWARE = 64;
+
     int mWidth;
     int mHeight;
     int mScaleShift;
+    // part of mScaleShift forced by the memory budget rather than asked for by the target size
+    int mBudgetShift;
     int mOrientation;
     Bitmap mOutput;
+    TileSet mTiles;
+    List<PicoImgRequest.Transformation> mTransforms;
 
     // animation dummies
     int mNumPlays;
     int mPlayFrame;
+    int mPlayLoop;
     long mNextFrameTime;
 
+    // receives the embedded thumbnail while the full image is being decoded
+    interface PreviewListener
+    {
+        void onPreview(BaseState preview, int width, int height);
+    }
+
     protected BaseState()
     {
     }
 
-    BaseState(InputStream inp, int targetWidth, int targetHeight, Context ctx, int resId, String assetName, File urlCache) throws IOException
+    BaseState(Bitmap bm, int orientation)
+    {
+        boolean swap = (orientation >= 5) && (orientation <= 8);
+        mOutput = bm;
+        mOrientation = orientation;
+        mWidth = swap ? bm.getHeight() : bm.getWidth();
+        mHeight = swap ? bm.getWidth() : bm.getHeight();
+    }
+
+    @SuppressLint("NewApi")
+    BaseState(InputStream inp, int targetWidth, int targetHeight, int scaleType, int stateFlags, Bitmap.Config config, Context ctx, int resId, String assetName, File urlCache, PreviewListener preview) throws IOException
     {
         BitmapFactory.Options opts = new BitmapFactory.Options();
-        InputStream activeStream = inp;
-        int origWidth = 0;
+        boolean regions = (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD_MR1);
+        boolean crop = regions && ((scaleType & PicoImg.SCALE_S_MASK) == PicoImg.SCALE_CROP) && (targetWidth > 0) && (targetHeight > 0);
+        boolean tiled = regions && (0 != (stateFlags & FLAG_TILED));
 
-        // find sample size
-        if ((targetWidth > 0) || (targetHeight > 0))
+        // format, size and exif orientation in one pass, the bytes read are replayed to the decoder
+        ImageHeader header = new ImageHeader(inp);
+        boolean jpeg = (ImageHeader.FORMAT_JPEG == header.mFormat);
+        int origWidth = header.mWidth, origHeight = header.mHeight;
+        mOrientation = header.mOrientation;
+        if ((origWidth <= 0) && ((targetWidth > 0) || (targetHeight > 0) || crop || tiled))
         {
-            inp.mark(1024);
+            // format we don't parse, let the decoder look at the prefix
             opts.inJustDecodeBounds = true;
-            BitmapFactory.decodeStream(inp, null, opts);
-            origWidth = mWidth = opts.outWidth;
-            mHeight = opts.outHeight;
-            scaleToTarget(targetWidth, targetHeight);
-            try
+            BitmapFactory.decodeStream(header.buffered(), null, opts);
+            origWidth = Math.max(0, opts.outWidth);
+            origHeight = Math.max(0, opts.outHeight);
+        }
+        opts.inJustDecodeBounds = false;
+
+        // pick the bitmap config, jpegs have no alpha
+        boolean hardware = useHardware(config, stateFlags);
+        if ((null != config) && !hardware)
+            opts.inPreferredConfig = config;
+        else if (jpeg && !hardware && (0 != (stateFlags & FLAG_AUTO_CONFIG)))
+            opts.inPreferredConfig = Bitmap.Config.RGB_565;
+
+        // exif orientation decides which side of the image goes along which side of the target
+        boolean swap = (mOrientation >= 5) && (mOrientation <= 8);
+
+        // camera thumbnail serves small targets on its own or shows up while the full image decodes
+        int fullWidth = origWidth, fullHeight = origHeight;
+        Bitmap thumb = null;
+        boolean useThumb = false;
+        if (jpeg && !tiled && ((targetWidth > 0) || (targetHeight > 0) || (null != preview)))
+            thumb = decodeThumbnail(header, origWidth, origHeight, opts.inPreferredConfig);
+        if (null != thumb)
+        {
+            useThumb = ((targetWidth > 0) || (targetHeight > 0)) && (targetWidth <= (swap ? thumb.getHeight() : thumb.getWidth())) && (targetHeight <= (swap ? thumb.getWidth() : thumb.getHeight()));
+            if (useThumb)
             {
-                inp.reset();
+                origWidth = thumb.getWidth();
+                origHeight = thumb.getHeight();
+                crop = false;
             }
-            catch (IOException e)
+            else if (null == preview)
             {
-                // we can't reset the provided stream, so we should open another one for decoding
-                if (resId != 0)
-                    activeStream = ctx.getResources().openRawResource(resId);
-                else if (!TextUtils.isEmpty(assetName))
-                    activeStream = ctx.getResources().getAssets().open(assetName);
-                else if (null != urlCache)
-                    activeStream = new FileInputStream(urlCache);
+                thumb.recycle();
+                thumb = null;
             }
         }
+        mWidth = swap ? origHeight : origWidth;
+        mHeight = swap ? origWidth : origHeight;
 
-        // decode the bitmap
-        opts.inJustDecodeBounds = false;
-        opts.inSampleSize = 1 << mScaleShift;
-        mOutput = BitmapFactory.decodeStream(activeStream, null, opts);
-        mWidth = opts.outWidth;
-        mHeight = opts.outHeight;
+        // with SCALE_CROP only a part of the image is going to be visible
+        Rect region = crop ? cropRegion(targetWidth, targetHeight, scaleType) : null;
+        if (null != region)
+        {
+            int width = mWidth, height = mHeight;
+            mWidth = region.width();
+            mHeight = region.height();
+            region = toRaw(region, width, height);
+        }
 
-        // some androids fail to downsample interlaced gifs
-        // detect it here to prevent further chaos
-        if ((mScaleShift > 0) && (mWidth == origWidth))
-            mScaleShift = 0;
+        // find sample size
+        if ((targetWidth > 0) || (targetHeight > 0))
+            scaleToTarget(targetWidth, targetHeight);
+
+        // huge image without a target must not take the whole heap, resampling and hardware upload need a copy
+        boolean tiles = tiled && (Math.max(mWidth, mHeight) > TileSet.MAX_TEXTURE_SIZE);
+        if (!tiles && !useThumb)
+            fitToBudget((Bitmap.Config.RGB_565 == opts.inPreferredConfig) ? 2 : 4, ((0 != (stateFlags & FLAG_EXACT_SIZE)) || hardware) ? 2 : 1);
 
-        // if we've opened second stream, it's time to close it
-        if (activeStream != inp)
+        // let the thumbnail cover the full decode
+        if ((null != thumb) && !useThumb)
+            preview.onPreview(new BaseState(thumb, mOrientation), mWidth, mHeight);
+
+        // decode the bitmap
+        InputStream activeStream = header.replay();
+        opts.inSampleSize = 1 << mScaleShift;
+        if (useThumb)
+            mOutput = thumb;
+        else if (null != region)
+            mOutput = decodeRegion(activeStream, urlCache, region, opts);
+        else if (tiles)
+            mOutput = decodeTiles(activeStream, urlCache, origWidth, origHeight, opts);
+        if (null == mOutput)
         {
+            // region decoder has failed after reading the stream, it has to be opened again
+            boolean reopened = ((null != region) || tiles) && (null == urlCache);
+            if (reopened)
+                activeStream = reopen(ctx, resId, assetName);
+            region = null;
+            // nothing is going to be drawn into the bitmap, let the decoder upload it right away
+            if (hardware && (0 == (stateFlags & FLAG_EXACT_SIZE)))
+                opts.inPreferredConfig = Bitmap.Config.HARDWARE;
             try
             {
-                activeStream.close();
+                mOutput = BitmapFactory.decodeStream(activeStream, null, opts);
             }
-            catch (Throwable e)
+            finally
             {
-                e.printStackTrace();
+                if (reopened)
+                    closeReopened(activeStream);
             }
         }
 
         // ok?
         if (null == mOutput)
             throw new IOException("Wrong image format");
+        if (null == mTiles)
+        {
+            mWidth = mOutput.getWidth();
+            mHeight = mOutput.getHeight();
+        }
+
+        // some androids fail to downsample interlaced gifs
+        // detect it here to prevent further chaos
+        if ((mScaleShift > 0) && (mWidth == ((null != region) ? region.width() : origWidth)))
+            mScaleShift = mBudgetShift = 0;
+
+        // thumbnail counts as a downsampled image for the ram cache
+        if (useThumb)
+            while ((Math.max(fullWidth, fullHeight) >> mScaleShift) > Math.max(origWidth, origHeight))
+                ++mScaleShift;
+
+        // keep the size oriented
+        if (swap)
+        {
+            int temp = mHeight;
+            mHeight = mWidth;
+            mWidth = temp;
+        }
+
+        // bring the bitmap to its final size and orientation
+        if ((0 != (stateFlags & FLAG_EXACT_SIZE)) && (null == mTiles))
+            resampleToTarget(targetWidth, targetHeight, scaleType);
+        if (hardware && (null == mTiles))
+            toHardware();
+    }
 
-        // Try to read the Exif orientation
+    @SuppressLint("NewApi")
+    static boolean useHardware(Bitmap.Config config, int stateFlags)
+    {
+        // hardware bitmaps are immutable and live in the gpu memory only
+        if ((Build.VERSION.SDK_INT < Build.VERSION_CODES.O) || (0 != (stateFlags & FLAG_SOFTWARE)))
+            return false;
+        return (Bitmap.Config.HARDWARE == config) || ((null == config) && (0 != (stateFlags & FLAG_AUTO_CONFIG)));
+    }
+
+    @SuppressLint("NewApi")
+    static Bitmap.Config getDecodeConfig(Bitmap.Config config, int stateFlags)
+    {
+        // the decoder produces the final bitmap right away
+        if (useHardware(config, stateFlags))
+            return Bitmap.Config.HARDWARE;
+        if ((Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) && (Bitmap.Config.HARDWARE == config))
+            return null;
+        return config;
+    }
+
+    @SuppressLint("NewApi")
+    void toHardware()
+    {
+        if (Bitmap.Config.HARDWARE == mOutput.getConfig())
+            return;
+        Bitmap bm = mOutput.copy(Bitmap.Config.HARDWARE, false);
+        if (null != bm)
+            mOutput = bm;
+    }
+
+    Bitmap getBitmap()
+    {
+        return mOutput;
+    }
+
+    void applyTransforms(List<PicoImgRequest.Transformation> transforms, boolean hardware)
+    {
+        // tiles are decoded on the fly, there's nothing to transform once
+        if (null == mTiles)
+        {
+            // transformations see the image upright
+            if (mOrientation > 1)
+                resampleToTarget(0, 0, 0);
+            mTransforms = transforms;
+            mOutput = transform(mOutput);
+            mWidth = mOutput.getWidth();
+            mHeight = mOutput.getHeight();
+        }
+        if (hardware)
+            toHardware();
+    }
+
+    Bitmap transform(Bitmap bm)
+    {
+        for (PicoImgRequest.Transformation t: mTransforms)
+            bm = t.transform(bm);
+        return bm;
+    }
+
+    private static InputStream reopen(Context ctx, int resId, String assetName) throws IOException
+    {
+        // the last resort, provided stream is gone so we should open another one
+        if (resId != 0)
+            return ctx.getResources().openRawResource(resId);
+        else if (!TextUtils.isEmpty(assetName))
+            return ctx.getResources().getAssets().open(assetName);
+        throw new IOException("Unable to reopen the stream");
+    }
+
+    private static void closeReopened(InputStream stream)
+    {
         try
         {
-            // Get a working input stream
-            try
-            {
-                activeStream = inp;
-                inp.reset();
-            }
-            catch (IOException e)
-            {
-                // we can't reset the provided stream, so we should open another one for decoding
-                if (resId != 0)
-                    activeStream = ctx.getResources().openRawResource(resId);
-                else if (!TextUtils.isEmpty(assetName))
-                    activeStream = ctx.getResources().getAssets().open(assetName);
-                else if (null != urlCache)
-                    activeStream = new FileInputStream(urlCache);
-            }
-            // JPEG must start with SOI
-            if (0xFFD8 == readExifInt(activeStream, 2, false))
-            {
-                while (true)
-                {
-                    // EOI or SOS. No point in proceeding
-                    int marker = readExifInt(activeStream, 2, false);
-                    if ((marker == 0xFFD9) || (marker == 0xFFDA))
-                        break;
-                    // Skip everything but APP1/Exif
-                    int len = readExifInt(activeStream, 2, false);
-                    if (marker != 0xFFE1)
-                    {
-                        if ((len - 2) != activeStream.skip(len - 2))
-                            break;
-                        continue;
-                    }
-                    // Check if this APP1 is indeed Exif
-                    if (0x45786966 != readExifInt(activeStream, 4, false))
-                        break;
-                    if (2 != activeStream.skip(2))
-                        break;
-                    // read the exif header
-                    boolean le = 0x4949 == readExifInt(activeStream, 2, false);
-                    if (2 != activeStream.skip(2))
-                        break;
-                    int off = readExifInt(activeStream, 4, le);
-                    if ((off - 8) != activeStream.skip(off - 8))
-                        break;
-                    // we only need IFD0 that must be first
-                    int entries = readExifInt(activeStream, 2, le);
-                    while (0 < entries--)
-                    {
-                        int tag = readExifInt(activeStream, 2, le);
-                        int fmt = readExifInt(activeStream, 2, le);
-                        if (4 != activeStream.skip(4))
-                            break;
-                        // Orientation
-                        if (0x0112 == tag)
-                        {
-                            // This tag is specified to be a 16-bit value
-                            if (3 == fmt)
-                            {
-                                mOrientation = readExifInt(activeStream, 2, le);
-                                if ((mOrientation >= 5) && (mOrientation <= 8))
-                                {
-                                    int temp = mHeight;
-                                    mHeight = mWidth;
-                                    mWidth = temp;
-                                }
-                            }
-                            break;
-                        }
-                        if (4 != activeStream.skip(4))
-                            break;
-                    }
-                    // done
-                    break;
-                }
-            }
+            stream.close();
         }
         catch (Throwable e)
         {
             e.printStackTrace();
         }
+    }
 
-        // close stream opened for the Exif
-        if (activeStream != inp)
+    private static Bitmap decodeThumbnail(ImageHeader header, int origWidth, int origHeight, Bitmap.Config config)
+    {
+        if ((header.mThumbLength <= 0) || (origWidth <= 0) || (origHeight <= 0))
+            return null;
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        if (null != config)
+            opts.inPreferredConfig = config;
+        Bitmap bm = header.decodeThumbnail(opts);
+        // some cameras letterbox the thumbnail, it's no use for other aspect ratios
+        if ((null != bm) && (Math.abs(bm.getWidth() - (float) origWidth * bm.getHeight() / origHeight) > 1))
         {
-            try
-            {
-                activeStream.close();
-            }
-            catch (Throwable e)
-            {
-                e.printStackTrace();
-            }
+            bm.recycle();
+            return null;
         }
+        return bm;
     }
 
-    private int readExifInt(InputStream inp, int size, boolean le) throws java.io.IOException
+    private Rect cropRegion(int targetWidth, int targetHeight, int scaleType)
     {
-        int ret = 0;
-        for (int i = 0; i < size; ++i)
+        // the part of the oriented image left visible by SCALE_CROP
+        if ((mWidth <= 0) || (mHeight <= 0))
+            return null;
+        float scale = Math.max((float) targetWidth / mWidth, (float) targetHeight / mHeight);
+        int width = Math.min(mWidth, Math.round(targetWidth / scale));
+        int height = Math.min(mHeight, Math.round(targetHeight / scale));
+        if ((width >= mWidth) && (height >= mHeight))
+            return null;
+        int bits = scaleType & PicoImg.SCALE_H_MASK;
+        int x = (bits == PicoImg.SCALE_LEFT) ? 0 : ((bits == PicoImg.SCALE_RIGHT) ? (mWidth - width) : ((mWidth - width) / 2));
+        bits = scaleType & PicoImg.SCALE_V_MASK;
+        int y = (bits == PicoImg.SCALE_TOP) ? 0 : ((bits == PicoImg.SCALE_BOTTOM) ? (mHeight - height) : ((mHeight - height) / 2));
+        return new Rect(x, y, x + width, y + height);
+    }
+
+    private Rect toRaw(Rect r, int width, int height)
+    {
+        // maps the oriented rect back to the stored pixels
+        switch (mOrientation)
         {
-            int b = inp.read();
-            if (b < 0)
-                throw new IOException("readExifInt: EOF reached");
-            ret |= (b << (8 * (le ? i : (size - 1 - i))));
+            case 2: return new Rect(width - r.right, r.top, width - r.left, r.bottom);
+            case 3: return new Rect(width - r.right, height - r.bottom, width - r.left, height - r.top);
+            case 4: return new Rect(r.left, height - r.bottom, r.right, height - r.top);
+            case 5: return new Rect(r.top, r.left, r.bottom, r.right);
+            case 6: return new Rect(r.top, width - r.right, r.bottom, width - r.left);
+            case 7: return new Rect(height - r.bottom, width - r.right, height - r.top, width - r.left);
+            case 8: return new Rect(height - r.bottom, r.left, height - r.top, r.right);
+            default: return r;
         }
-        return ret;
+    }
+
+    @SuppressLint("NewApi")
+    private static BitmapRegionDecoder newRegionDecoder(InputStream inp, File urlCache) throws IOException
+    {
+        // decoder can map the cached file instead of copying the whole stream
+        if (null != urlCache)
+            return BitmapRegionDecoder.newInstance(urlCache.getPath(), false);
+        return BitmapRegionDecoder.newInstance(inp, false);
+    }
+
+    @SuppressLint("NewApi")
+    private static Bitmap decodeRegion(InputStream inp, File urlCache, Rect region, BitmapFactory.Options opts)
+    {
+        try
+        {
+            BitmapRegionDecoder decoder = newRegionDecoder(inp, urlCache);
+            Bitmap ret = decoder.decodeRegion(region, opts);
+            decoder.recycle();
+            return ret;
+        }
+        catch (IOException e)
+        {
+            // format is not supported by the region decoder
+            return null;
+        }
+    }
+
+    @SuppressLint("NewApi")
+    private Bitmap decodeTiles(InputStream inp, File urlCache, int origWidth, int origHeight, BitmapFactory.Options opts) throws IOException
+    {
+        BitmapRegionDecoder decoder;
+        try
+        {
+            decoder = newRegionDecoder(inp, urlCache);
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+
+        // whole image is kept as a preview that fits into the texture, tiles add details on top
+        int previewShift = mScaleShift;
+        while (Math.max(origWidth, origHeight) >> previewShift > TileSet.MAX_TEXTURE_SIZE)
+            ++previewShift;
+        opts.inSampleSize = 1 << previewShift;
+        Bitmap preview = decoder.decodeRegion(new Rect(0, 0, origWidth, origHeight), opts);
+        if (null == preview)
+            return null;
+        mTiles = new TileSet(decoder, mScaleShift, origWidth, origHeight);
+        mWidth = origWidth >> mScaleShift;
+        mHeight = origHeight >> mScaleShift;
+        return preview;
+    }
+
+    private void resampleToTarget(int targetWidth, int targetHeight, int scaleType)
+    {
+        // mWidth and mHeight are already oriented
+        float sx = (targetWidth > 0) ? ((float) targetWidth / mWidth) : 0;
+        float sy = (targetHeight > 0) ? ((float) targetHeight / mHeight) : 0;
+        int mode = scaleType & PicoImg.SCALE_S_MASK;
+        if ((sx == 0) && (sy == 0))
+            sx = sy = 1;
+        else if (mode == PicoImg.SCALE_FILL)
+        {
+            // fill stretches both axes independently
+            if ((sx == 0) || (sy == 0))
+                sx = sy = 1;
+        }
+        else if ((mode == PicoImg.SCALE_CROP) || (sx == 0) || (sy == 0))
+            sx = sy = Math.max(sx, sy);
+        else
+            sx = sy = Math.min(sx, sy);
+
+        // never upscale, drawable does it for free
+        int width = Math.max(1, Math.round(mWidth * Math.min(sx, 1)));
+        int height = Math.max(1, Math.round(mHeight * Math.min(sy, 1)));
+        if ((width == mWidth) && (height == mHeight) && (mOrientation <= 1))
+            return;
+
+        // bake the exif orientation in
+        int bw = mOutput.getWidth(), bh = mOutput.getHeight();
+        Matrix m = new Matrix();
+        switch (mOrientation)
+        {
+            case 2: m.postScale(-1, 1); m.postTranslate(bw, 0); break;
+            case 3: m.postRotate(180); m.postTranslate(bw, bh); break;
+            case 4: m.postScale(1, -1); m.postTranslate(0, bh); break;
+            case 5: m.postRotate(90); m.postScale(-1, 1); break;
+            case 6: m.postRotate(90); m.postTranslate(bh, 0); break;
+            case 7: m.postRotate(90); m.postScale(1, -1); m.postTranslate(bh, bw); break;
+            case 8: m.postRotate(270); m.postTranslate(0, bw); break;
+        }
+        boolean swap = (mOrientation >= 5) && (mOrientation <= 8);
+        m.postScale((float) width / (swap ? bh : bw), (float) height / (swap ? bw : bh));
+
+        // resample, subsampling has left us within 2x of the target so bilinear filter is enough
+        Bitmap.Config config = (null != mOutput.getConfig()) ? mOutput.getConfig() : Bitmap.Config.ARGB_8888;
+        Bitmap out = Bitmap.createBitmap(width, height, config);
+        new Canvas(out).drawBitmap(mOutput, m, new Paint(Paint.FILTER_BITMAP_FLAG));
+        mOutput.recycle();
+        mOutput = out;
+        mWidth = width;
+        mHeight = height;
+        mOrientation = 0;
+    }
+
+    // extra subsampling needed for all the bitmaps to fit into the budget
+    static int budgetShift(int width, int height, int bytesPerPixel, int buffers, long budget)
+    {
+        int shift = 0;
+        if (budget <= 0)
+            return shift;
+        while (((long) width * height * bytesPerPixel * buffers > budget) && (width > 1) && (height > 1))
+        {
+            ++shift;
+            width >>= 1;
+            height >>= 1;
+        }
+        return shift;
+    }
+
+    protected void fitToBudget(int bytesPerPixel, int buffers)
+    {
+        int shift = budgetShift(mWidth, mHeight, bytesPerPixel, buffers, PicoImg.getMemoryBudget());
+        mScaleShift += shift;
+        mBudgetShift += shift;
+        mWidth >>= shift;
+        mHeight >>= shift;
     }
 
     protected void scaleToTarget(int targetWidth, int targetHeight)
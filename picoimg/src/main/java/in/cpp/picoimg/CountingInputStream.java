@@ -0,0 +1,65 @@
+package in.cpp.picoimg;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+class CountingInputStream extends FilterInputStream
+{
+    private long mPosition;
+    private long mMarkPosition;
+
+    public CountingInputStream(InputStream inp)
+    {
+        super(inp);
+    }
+
+    public long getPosition()
+    {
+        return mPosition;
+    }
+
+    // keeps counting on a reopened stream, the caller skips it to our position
+    InputStream swap(InputStream inp)
+    {
+        InputStream old = in;
+        in = inp;
+        return old;
+    }
+
+    public int read() throws IOException
+    {
+        int ret = super.read();
+        if (ret >= 0)
+            ++mPosition;
+        return ret;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        int ret = super.read(b, off, len);
+        if (ret > 0)
+            mPosition += ret;
+        return ret;
+    }
+
+    public long skip(long n) throws IOException
+    {
+        long ret = super.skip(n);
+        if (ret > 0)
+            mPosition += ret;
+        return ret;
+    }
+
+    public synchronized void mark(int readAheadLimit)
+    {
+        super.mark(readAheadLimit);
+        mMarkPosition = mPosition;
+    }
+
+    public synchronized void reset() throws IOException
+    {
+        super.reset();
+        mPosition = mMarkPosition;
+    }
+}
@@ -0,0 +1,94 @@
+package in.cpp.picoimg;
+
+import android.annotation.SuppressLint;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Build;
+
+// Bounded pool of idle drawables, each one keeps its Paint and Matrix for reuse
+class DrawablePool
+{
+    private static PicoDrawable[] sPool = new PicoDrawable[16];
+    private static int sSize;
+    private static boolean sRegistered;
+
+    static synchronized PicoDrawable acquire()
+    {
+        while (sSize > 0)
+        {
+            PicoDrawable d = sPool[--sSize];
+            sPool[sSize] = null;
+            // still attached to some view, it isn't idle
+            if (d.isDetached())
+                return d;
+        }
+        return new PicoDrawable();
+    }
+
+    static synchronized void release(PicoDrawable d)
+    {
+        if ((sSize == sPool.length) || !d.isDetached())
+            return;
+        // recycled twice, don't hand it out twice
+        for (int i = 0; i < sSize; ++i)
+            if (sPool[i] == d)
+                return;
+        sPool[sSize++] = d;
+    }
+
+    static synchronized void setCapacity(int capacity)
+    {
+        PicoDrawable[] pool = new PicoDrawable[Math.max(0, capacity)];
+        sSize = Math.min(sSize, pool.length);
+        System.arraycopy(sPool, 0, pool, 0, sSize);
+        sPool = pool;
+    }
+
+    static synchronized int getCapacity()
+    {
+        return sPool.length;
+    }
+
+    static synchronized int getSize()
+    {
+        return sSize;
+    }
+
+    static synchronized void trim(int keep)
+    {
+        while (sSize > keep)
+            sPool[--sSize] = null;
+    }
+
+    @SuppressLint("NewApi")
+    static synchronized void register(Context ctx)
+    {
+        if (sRegistered || (Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH))
+            return;
+        sRegistered = true;
+        ctx.getApplicationContext().registerComponentCallbacks(new ComponentCallbacks2()
+        {
+            @Override
+            public void onTrimMemory(int level)
+            {
+                // keep a few for scrolling while the app is in the foreground
+                if (level >= TRIM_MEMORY_RUNNING_CRITICAL)
+                    trim(0);
+                else if (level >= TRIM_MEMORY_RUNNING_MODERATE)
+                    trim(getCapacity() / 4);
+            }
+
+            @Override
+            public void onLowMemory()
+            {
+                trim(0);
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration config)
+            {
+            }
+        });
+    }
+}
@@ -3,21 +3,18 @@ package in.cpp.picoimg;
 import android.annotation.SuppressLint;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.graphics.Canvas;
 import android.graphics.Color;
-import android.graphics.PorterDuff;
-import android.graphics.Rect;
 import android.os.Build;
 import android.os.SystemClock;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.ref.SoftReference;
-import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.Vector;
 
-class GIFState extends BaseState
+class GIFState extends AnimState
 {
     // SKIA sometimes fail to decode transparent GIFs, see https://issuetracker.google.com/issues/36983182
     private static boolean BUG62016_WORKAROUND_NEEDED = (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) && (Build.VERSION.SDK_INT <= Build.VERSION_CODES.M);
@@ -34,34 +31,28 @@ class GIFState extends BaseState
     private static final byte[] GIF_HEADER89 = {'G', 'I', 'F', '8', '9', 'a'};
     private static final byte[] GIF_FOOTER = {0, INT_END};
 
-    private static class Frame
+    private static class GIFFrame extends Frame
     {
-        int mOffX;
-        int mOffY;
-        int mWidth;
-        int mHeight;
-        int mDelay;
         int mTransp;
         int mLctSize;
         int mLctPos;
-        int mDispose;
         List<byte[]> mData;
-        SoftReference<Bitmap> mBitmap;
+        long mFilePos;
+        int mFileLen;
     }
 
     // source data
     private byte[] mCommonHeader;
-    private List<Frame> mFrames;
     private int mBackColor = Color.TRANSPARENT;
     private boolean mHasDelays;
     private int mGctSize;
     private int mGctPos;
 
-    // playback
-    private Canvas mCanvas;
-    private int mPrevDispose;
-    private Rect mPrevRect;
-    private ByteBuffer mPrevPixels;
+    // parser state
+    private CountingInputStream mCounter;
+    private int mGceFlags;
+    private int mGceDelay;
+    private int mGceTransp;
 
     //region LOADER
     private static int read_ubyte(InputStream inp) throws IOException
@@ -100,8 +91,17 @@ class GIFState extends BaseState
         return pos;
     }
 
-    GIFState(InputStream inp, int targetWidth, int targetHeight) throws IOException
+    GIFState(InputStream inp, int targetWidth, int targetHeight, File streamFile, int stateFlags, Bitmap.Config config) throws IOException
     {
+        super(config, stateFlags);
+
+        // streaming keeps frame data in the file, we only need to know where it is
+        if (null != streamFile)
+        {
+            openSource(streamFile);
+            inp = mCounter = new CountingInputStream(inp);
+        }
+
         // check header
         for (int i = 0; i < 6; ++i)
         {
@@ -131,115 +131,21 @@ class GIFState extends BaseState
         if ((targetWidth > 0) || (targetHeight > 0))
             scaleToTarget(targetWidth, targetHeight);
 
-        // read data
+        // read data, progressive loading stops after the first frame
         try
         {
-            int gce_flags = 0;
-            int gce_delay = 0;
-            int gce_transp = 0;
-            //
-            while (true)
+            Frame f;
+            while (null != (f = parseFrame(inp)))
             {
-                byte introducer = (byte) read_ubyte(inp);
-                //
-                if (INT_EXTENSION == introducer)
-                {
-                    byte label = (byte) read_ubyte(inp);
-                    int len = read_ubyte(inp);
-                    byte[] buf = null;
-                    // handle known cases
-                    if ((EXT_APPLICATION == label) && (EXT_NETSCAPE.length == len))
-                    {
-                        boolean match = true;
-                        for (byte b: EXT_NETSCAPE)
-                            if (b != (byte) read_ubyte(inp))
-                                match = false;
-                        len = read_ubyte(inp);
-                        if (match && (3 == len))
-                        {
-                            read_ubyte(inp); // sub-block index
-                            mNumPlays = read_ushort_le(inp);
-                            len = read_ubyte(inp);
-                        }
-                    }
-                    else if ((EXT_GRAPHIC_CTL == label) && (4 == len))
-                    {
-                        gce_flags = read_ubyte(inp);
-                        gce_delay = read_ushort_le(inp);
-                        gce_transp = read_ubyte(inp);
-                        len = read_ubyte(inp);
-                    }
-                    // read out the rest
-                    while (len > 0)
-                    {
-                        if (null == buf)
-                            buf = new byte[256];
-                        read_bytes(inp, buf, 0, len);
-                        len = read_ubyte(inp);
-                    }
-                }
-                else if (INT_IMAGE == introducer)
-                {
-                    Frame f = new Frame();
-                    f.mOffX = read_ushort_le(inp);
-                    f.mOffY = read_ushort_le(inp);
-                    f.mWidth = read_ushort_le(inp);
-                    f.mHeight = read_ushort_le(inp);
-                    f.mDelay = gce_delay * 10;
-                    f.mTransp = ((gce_flags & 1) != 0) ? gce_transp : -1;
-                    f.mDispose = (gce_flags >> 2) & 7;
-                    flags = read_ubyte(inp);
-                    f.mLctSize = ((flags & 0x80) != 0) ? (3 * (2 << (flags & 7))) : 0;
-                    // write frame data buffer
-                    byte[] buf = new byte[((f.mTransp >= 0) ? 8 : 0) + 10 + f.mLctSize + 1];
-                    int pos = 0;
-                    if (f.mTransp >= 0)
-                    {
-                        buf[pos++] = INT_EXTENSION;
-                        buf[pos++] = EXT_GRAPHIC_CTL;
-                        buf[pos++] = 4; // len
-                        buf[pos++] = 1; // has transparency
-                        buf[pos++] = 0; // delay_l
-                        buf[pos++] = 0; // delay_h
-                        buf[pos++] = (byte) f.mTransp;
-                        buf[pos++] = 0; // end
-                    }
-                    buf[pos++] = INT_IMAGE;
-                    pos = write_ushort_le(buf, pos, 0); // x
-                    pos = write_ushort_le(buf, pos, 0); // y
-                    pos = write_ushort_le(buf, pos, f.mWidth);
-                    pos = write_ushort_le(buf, pos, f.mHeight);
-                    buf[pos++] = (byte) flags;
-                    f.mLctPos = pos;
-                    read_bytes(inp, buf, pos, f.mLctSize);
-                    pos += f.mLctSize;
-                    buf[pos] = (byte) read_ubyte(inp); // LZW min code size
-                    f.mData = new Vector<>(10);
-                    f.mData.add(buf);
-                    // read pixels
-                    while (true)
-                    {
-                        int len = read_ubyte(inp);
-                        if (len < 1)
-                            break;
-                        buf = new byte[1 + len];
-                        buf[0] = (byte) len;
-                        read_bytes(inp, buf, 1, len);
-                        f.mData.add(buf);
-                    }
-                    // done
-                    if (null == mFrames)
-                        mFrames = new Vector<>(32);
-                    mFrames.add(f);
-                    if (f.mDelay != 0)
-                        mHasDelays = true;
-                }
-                else if (INT_END == introducer)
+                if (null == mFrames)
+                    mFrames = new Vector<>(32);
+                mFrames.add(f);
+                if (0 != (stateFlags & (FLAG_PROGRESSIVE | FLAG_FIRST_FRAME)))
                 {
+                    mParseInput = inp;
+                    mLoading = true;
                     break;
                 }
-                else
-                    throw new IOException("Invalid GIF introducer " + introducer);
             }
         }
         catch (Throwable e)
@@ -249,35 +155,44 @@ class GIFState extends BaseState
             else
                 throw e;
         }
+        fitToBudget(4, canvasBuffers((null != mFrames) ? mFrames.size() : 0, mLoading));
 
         // load the first bitmap and prepare for animation rendering
         if (null != mFrames)
         {
             Frame first = mFrames.get(0);
+            if (!mHasDelays)
+                for (Frame f: mFrames)
+                    f.mDelay = 100;
+
+            // move the compressed data out of the heap, frame headers are small enough to stay
+            if (mOffHeap && ((mFrames.size() > 1) || mLoading))
+                for (Frame f: mFrames)
+                    packFrame(f);
 
             // some androids fail to downsample interlaced gifs
             // detect it here to prevent further chaos
             mOutput = loadFrame(first);
             if ((mScaleShift > 0) && (mOutput.getWidth() == first.mWidth))
             {
-                mScaleShift = 0;
+                mScaleShift = mBudgetShift = 0;
                 mWidth = origWidth;
                 mHeight = origHeight;
             }
 
-            if ((mFrames.size() > 1) || (first.mWidth != origWidth) || (first.mHeight != origHeight))
+            if ((mFrames.size() > 1) || mLoading || (first.mWidth != origWidth) || (first.mHeight != origHeight))
             {
                 first.mBitmap = new SoftReference<>(mOutput);
-                mOutput = Bitmap.createBitmap(mWidth, mHeight, Bitmap.Config.ARGB_8888);
-                mCanvas = new Canvas(mOutput);
-                step();
+                initPlayback();
             }
 
             // don't animate static image
-            if (mFrames.size() == 1)
+            if ((mFrames.size() == 1) && !mLoading)
             {
                 mNextFrameTime = 0;
                 mFrames = null;
+                if ((null != mOutput) && useHardware(config, stateFlags))
+                    toHardware();
             }
         }
 
@@ -286,19 +201,187 @@ class GIFState extends BaseState
             throw new IOException("Decoder failed unexpectedly");
     }
 
+    @Override
+    Frame parseFrame(InputStream inp) throws IOException
+    {
+        while (true)
+        {
+            byte introducer = (byte) read_ubyte(inp);
+            //
+            if (INT_EXTENSION == introducer)
+            {
+                byte label = (byte) read_ubyte(inp);
+                int len = read_ubyte(inp);
+                byte[] buf = null;
+                // handle known cases
+                if ((EXT_APPLICATION == label) && (EXT_NETSCAPE.length == len))
+                {
+                    boolean match = true;
+                    for (byte b: EXT_NETSCAPE)
+                        if (b != (byte) read_ubyte(inp))
+                            match = false;
+                    len = read_ubyte(inp);
+                    if (match && (3 == len))
+                    {
+                        read_ubyte(inp); // sub-block index
+                        mNumPlays = read_ushort_le(inp);
+                        len = read_ubyte(inp);
+                    }
+                }
+                else if ((EXT_GRAPHIC_CTL == label) && (4 == len))
+                {
+                    mGceFlags = read_ubyte(inp);
+                    mGceDelay = read_ushort_le(inp);
+                    mGceTransp = read_ubyte(inp);
+                    len = read_ubyte(inp);
+                }
+                // read out the rest
+                while (len > 0)
+                {
+                    if (null == buf)
+                        buf = new byte[256];
+                    read_bytes(inp, buf, 0, len);
+                    len = read_ubyte(inp);
+                }
+            }
+            else if (INT_IMAGE == introducer)
+            {
+                GIFFrame f = new GIFFrame();
+                f.mOffX = read_ushort_le(inp);
+                f.mOffY = read_ushort_le(inp);
+                f.mWidth = read_ushort_le(inp);
+                f.mHeight = read_ushort_le(inp);
+                f.mDelay = mGceDelay * 10;
+                f.mTransp = ((mGceFlags & 1) != 0) ? mGceTransp : -1;
+                int dispose = (mGceFlags >> 2) & 7;
+                f.mDispose = (dispose > 2) ? DISPOSE_PREVIOUS : ((dispose == 2) ? DISPOSE_BACKGROUND : DISPOSE_NONE);
+                f.mOpaque = (f.mTransp < 0);
+                int flags = read_ubyte(inp);
+                f.mLctSize = ((flags & 0x80) != 0) ? (3 * (2 << (flags & 7))) : 0;
+                // write frame data buffer
+                byte[] buf = new byte[((f.mTransp >= 0) ? 8 : 0) + 10 + f.mLctSize + 1];
+                int pos = 0;
+                if (f.mTransp >= 0)
+                {
+                    buf[pos++] = INT_EXTENSION;
+                    buf[pos++] = EXT_GRAPHIC_CTL;
+                    buf[pos++] = 4; // len
+                    buf[pos++] = 1; // has transparency
+                    buf[pos++] = 0; // delay_l
+                    buf[pos++] = 0; // delay_h
+                    buf[pos++] = (byte) f.mTransp;
+                    buf[pos++] = 0; // end
+                }
+                buf[pos++] = INT_IMAGE;
+                pos = write_ushort_le(buf, pos, 0); // x
+                pos = write_ushort_le(buf, pos, 0); // y
+                pos = write_ushort_le(buf, pos, f.mWidth);
+                pos = write_ushort_le(buf, pos, f.mHeight);
+                buf[pos++] = (byte) flags;
+                f.mLctPos = pos;
+                read_bytes(inp, buf, pos, f.mLctSize);
+                pos += f.mLctSize;
+                buf[pos] = (byte) read_ubyte(inp); // LZW min code size
+                f.mData = new Vector<>(10);
+                f.mData.add(buf);
+                // skip pixels, remember their location
+                if (null != mCounter)
+                {
+                    f.mFilePos = mCounter.getPosition();
+                    int len;
+                    while (0 < (len = read_ubyte(inp)))
+                        skipBytes(inp, len);
+                    f.mFileLen = (int) (mCounter.getPosition() - 1 - f.mFilePos);
+                }
+                // read pixels
+                else
+                {
+                    while (true)
+                    {
+                        int len = read_ubyte(inp);
+                        if (len < 1)
+                            break;
+                        buf = new byte[1 + len];
+                        buf[0] = (byte) len;
+                        read_bytes(inp, buf, 1, len);
+                        f.mData.add(buf);
+                    }
+                }
+                // done
+                if (f.mDelay != 0)
+                    mHasDelays = true;
+                else if (!mHasDelays && mLoading)
+                    f.mDelay = 100; // can't look ahead for delays while loading progressively
+                return f;
+            }
+            else if (INT_END == introducer)
+            {
+                return null;
+            }
+            else
+                throw new IOException("Invalid GIF introducer " + introducer);
+        }
+    }
+
+    @Override
+    int getHeapBytes(Frame frame)
+    {
+        List<byte[]> data = ((GIFFrame) frame).mData;
+        int bytes = 0;
+        if (null != data)
+            for (int i = 0; i < data.size(); ++i)
+                bytes += data.get(i).length;
+        return bytes;
+    }
+
+    @Override
+    void packFrame(Frame frame) throws IOException
+    {
+        if (null != mCounter)
+            return;
+        GIFFrame f = (GIFFrame) frame;
+        int len = 0;
+        for (int i = 1; i < f.mData.size(); ++i)
+            len += f.mData.get(i).length;
+        f.mFilePos = storeData(f.mData, 1);
+        f.mFileLen = len;
+        f.mData.subList(1, f.mData.size()).clear();
+    }
+
+    @Override
+    int getClearColor(Frame f)
+    {
+        return (((GIFFrame) f).mTransp >= 0) ? Color.TRANSPARENT : mBackColor;
+    }
+
+    @Override
     @SuppressLint("NewApi")
-    private Bitmap loadFrame(Frame f)
+    Bitmap loadFrame(Frame frame)
     {
+        GIFFrame f = (GIFFrame) frame;
         // update common header
         write_ushort_le(mCommonHeader,0, f.mWidth);
         write_ushort_le(mCommonHeader, 2, f.mHeight);
 
         // create buffer list
-        byte[][] bufs = new byte[f.mData.size() + 3][];
+        byte[][] bufs = new byte[f.mData.size() + ((f.mFileLen > 0) ? 4 : 3)][];
         bufs[0] = (f.mTransp >= 0) ? GIF_HEADER89 : GIF_HEADER87;
         bufs[1] = mCommonHeader;
         for (int i = 0; i < f.mData.size(); ++i)
             bufs[2 + i] = f.mData.get(i);
+        if (f.mFileLen > 0)
+        {
+            bufs[bufs.length - 2] = new byte[f.mFileLen];
+            try
+            {
+                readSource(f.mFilePos, bufs[bufs.length - 2], 0, f.mFileLen);
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+                return null;
+            }
+        }
         bufs[bufs.length - 1] = GIF_FOOTER;
 
         // SKIA bug62016 workaround step 1, change transparent color to unique
@@ -360,6 +443,9 @@ class GIFState extends BaseState
         BitmapFactory.Options options = new BitmapFactory.Options();
         options.inJustDecodeBounds = false;
         options.inSampleSize = 1 << mScaleShift;
+        Bitmap.Config config = getFrameConfig(f);
+        if (null != config)
+            options.inPreferredConfig = config;
         Bitmap ret = BitmapFactory.decodeStream(new MultipleArrayInputStream(bufs), null, options);
 
         // SKIA bug62016 workaround step 2, finalize
@@ -407,108 +493,6 @@ class GIFState extends BaseState
     }
     //endregion
 
-    //region RENDERER
-    private boolean mPreloadRunning;
-    private final Runnable mPreloadRunnable = new Runnable()
-    {
-        @Override public void run()
-        {
-            mPreloadRunning = true;
-            Frame f = mFrames.get(mPlayFrame);
-            Bitmap bm = loadFrame(f);
-            if (bm != null)
-                f.mBitmap = new SoftReference<>(bm);
-            mPreloadRunning = false;
-        }
-    };
-
-    @Override
-    protected void step()
-    {
-        // not animated? return silently
-        if (null == mFrames)
-            return;
-
-        // we're early, probably we have multiple active drawables.
-        // do nothing
-        long time = SystemClock.uptimeMillis();
-        if (time < mNextFrameTime)
-            return;
-
-        // we're way late, probably there were no active drawables for some time.
-        // restart the animation
-        if (time > mNextFrameTime + 1000)
-            mPlayFrame = 0;
-
-        // get the frame
-        Frame f = mFrames.get(mPlayFrame);
-        mNextFrameTime = time + Math.max(1, mHasDelays ? f.mDelay : 100);
-        int fx = f.mOffX >> mScaleShift, fy = f.mOffY >> mScaleShift, fw = f.mWidth >> mScaleShift, fh = f.mHeight >> mScaleShift;
-
-        // frame is still preloading
-        // we're already updated Next Frame Time, so just return
-        if (mPreloadRunning)
-            return;
-
-        // finish previous frame disposal
-        if (mPlayFrame == 0)
-        {
-            mCanvas.drawColor((f.mTransp >= 0) ? Color.TRANSPARENT : mBackColor, PorterDuff.Mode.SRC);
-            mPrevDispose = 0;
-        }
-        if (mPrevDispose > 2)
-        {
-            mPrevPixels.rewind();
-            mOutput.copyPixelsFromBuffer(mPrevPixels);
-        }
-        else if (mPrevDispose == 2)
-        {
-            mCanvas.save();
-            mCanvas.clipRect(mPrevRect);
-            mCanvas.drawColor((f.mTransp >= 0) ? Color.TRANSPARENT : mBackColor, PorterDuff.Mode.SRC);
-            mCanvas.restore();
-        }
-
-        // prepare new frame disposal
-        mPrevDispose = f.mDispose;
-        if (mPrevDispose > 2)
-        {
-            if (null == mPrevPixels)
-                mPrevPixels = ByteBuffer.allocate(mOutput.getRowBytes() * mOutput.getHeight());
-            mPrevPixels.rewind();
-            mOutput.copyPixelsToBuffer(mPrevPixels);
-        }
-        else if (mPrevDispose == 2)
-        {
-            if (null == mPrevRect)
-                mPrevRect = new Rect();
-            mPrevRect.set(fx, fy, fx + fw, fy + fh);
-        }
-
-        // draw the frame
-        Bitmap bm = null;
-        if (null != f.mBitmap)
-            bm = f.mBitmap.get();
-        if (bm == null)
-        {
-            bm = loadFrame(f);
-            if (bm != null)
-                f.mBitmap = new SoftReference<>(bm);
-        }
-        if (null != bm)
-            mCanvas.drawBitmap(bm, fx, fy, null);
-
-        // step to the next frame
-        if (++mPlayFrame == mFrames.size())
-            mPlayFrame = 0;
-
-        // preload bitmap for the next frame
-        f = mFrames.get(mPlayFrame);
-        if ((null == f.mBitmap) || (null == f.mBitmap.get()))
-            PicoImg.sExecutor.execute(mPreloadRunnable);
-    }
-    //endregion
-
     static boolean check(InputStream inp) throws IOException
     {
         boolean ret = true;
@@ -522,10 +506,4 @@ class GIFState extends BaseState
         inp.reset();
         return ret;
     }
-
-    @Override
-    boolean isAnimated()
-    {
-        return (mFrames != null);
-    }
 }
@@ -0,0 +1,212 @@
+package in.cpp.picoimg;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+
+// Format, size and orientation read from the beginning of the stream in one pass,
+// the bytes are kept to be replayed in front of the rest of the stream for decoding
+class ImageHeader
+{
+    static final int FORMAT_UNKNOWN = 0;
+    static final int FORMAT_JPEG = 1;
+    static final int FORMAT_PNG = 2;
+    static final int FORMAT_GIF = 3;
+    static final int FORMAT_WEBP = 4;
+
+    // prefix for the decoder to look at when we don't know the format
+    private static final int UNKNOWN_PREFIX = 64 * 1024;
+
+    int mFormat;
+    int mWidth;
+    int mHeight;
+    int mOrientation;
+    int mThumbLength;
+    private int mThumbOffset;
+
+    private final InputStream mInput;
+    private byte[] mData = new byte[4096];
+    private int mLength;
+
+    ImageHeader(InputStream inp)
+    {
+        mInput = inp;
+        try
+        {
+            if (0xFFD8 == readInt(2, false))
+            {
+                mFormat = FORMAT_JPEG;
+                readJpeg();
+                return;
+            }
+            fill(30 - mLength);
+            if ((0x89504E47 == getInt(0, 4, false)) && (0x49484452 == getInt(12, 4, false)))
+            {
+                mFormat = FORMAT_PNG;
+                mWidth = getInt(16, 4, false);
+                mHeight = getInt(20, 4, false);
+            }
+            else if (0x47494638 == getInt(0, 4, false))
+            {
+                mFormat = FORMAT_GIF;
+                mWidth = getInt(6, 2, true);
+                mHeight = getInt(8, 2, true);
+            }
+            else if ((0x52494646 == getInt(0, 4, false)) && (0x57454250 == getInt(8, 4, false)))
+            {
+                mFormat = FORMAT_WEBP;
+                readWebP();
+            }
+            else
+                fill(UNKNOWN_PREFIX - mLength);
+        }
+        catch (IOException e)
+        {
+            // short or broken stream, the decoder will have the final word
+        }
+    }
+
+    InputStream buffered()
+    {
+        return new ByteArrayInputStream(mData, 0, mLength);
+    }
+
+    Bitmap decodeThumbnail(BitmapFactory.Options opts)
+    {
+        return (mThumbLength > 0) ? BitmapFactory.decodeByteArray(mData, mThumbOffset, mThumbLength, opts) : null;
+    }
+
+    InputStream replay()
+    {
+        return new SequenceInputStream(buffered(), mInput);
+    }
+
+    //region READER
+    private void fill(int length) throws IOException
+    {
+        if (mLength + length > mData.length)
+        {
+            byte[] data = new byte[Math.max(mData.length * 2, mLength + length)];
+            System.arraycopy(mData, 0, data, 0, mLength);
+            mData = data;
+        }
+        while (length > 0)
+        {
+            int res = mInput.read(mData, mLength, length);
+            if (res < 1)
+                throw new IOException("Unexpected end of file");
+            mLength += res;
+            length -= res;
+        }
+    }
+
+    private int readInt(int size, boolean le) throws IOException
+    {
+        fill(size);
+        return getInt(mLength - size, size, le);
+    }
+
+    private int getInt(int pos, int size, boolean le)
+    {
+        int ret = 0;
+        for (int i = 0; i < size; ++i)
+            ret |= (mData[pos + i] & 0xFF) << (8 * (le ? i : (size - 1 - i)));
+        return ret;
+    }
+    //endregion
+
+    //region FORMATS
+    private void readJpeg() throws IOException
+    {
+        while (true)
+        {
+            // EOI or SOS. No point in proceeding
+            int marker = readInt(2, false);
+            if ((marker == 0xFFD9) || (marker == 0xFFDA) || ((marker & 0xFF00) != 0xFF00))
+                return;
+            int len = readInt(2, false);
+            if (len < 2)
+                return;
+            // SOFn, except DHT, JPG and DAC that share the range
+            if ((marker >= 0xFFC0) && (marker <= 0xFFCF) && (marker != 0xFFC4) && (marker != 0xFFC8) && (marker != 0xFFCC))
+            {
+                fill(1); // precision
+                mHeight = readInt(2, false);
+                mWidth = readInt(2, false);
+                return;
+            }
+            int pos = mLength;
+            fill(len - 2);
+            // APP1/Exif
+            if ((marker == 0xFFE1) && (len >= 16) && (0x45786966 == getInt(pos, 4, false)))
+                readExif(pos + 6, len - 8);
+        }
+    }
+
+    private void readExif(int tiff, int length)
+    {
+        // offsets are relative to the tiff header, keep them inside the segment
+        boolean le = 0x4949 == getInt(tiff, 2, false);
+        int ifd = getInt(tiff + 4, 4, le);
+        int thumbOffset = 0, thumbLength = 0;
+
+        // IFD0 keeps the orientation, IFD1 that follows describes the thumbnail
+        for (int index = 0; (index < 2) && (ifd >= 8) && (ifd + 2 <= length); ++index)
+        {
+            int entries = getInt(tiff + ifd, 2, le);
+            if (ifd + 2 + entries * 12 + 4 > length)
+                break;
+            for (int i = 0; i < entries; ++i)
+            {
+                int entry = tiff + ifd + 2 + i * 12;
+                int tag = getInt(entry, 2, le);
+                int fmt = getInt(entry + 2, 2, le);
+                // Orientation, this tag is specified to be a 16-bit value
+                if ((0 == index) && (0x0112 == tag) && (3 == fmt))
+                    mOrientation = getInt(entry + 8, 2, le);
+                // JPEGInterchangeFormat and its length
+                else if ((1 == index) && (0x0201 == tag))
+                    thumbOffset = getInt(entry + 8, 4, le);
+                else if ((1 == index) && (0x0202 == tag))
+                    thumbLength = getInt(entry + 8, 4, le);
+            }
+            ifd = getInt(tiff + ifd + 2 + entries * 12, 4, le);
+        }
+
+        // the thumbnail is inside the segment we have already read
+        if ((thumbOffset >= 8) && (thumbLength > 0) && (thumbLength <= length - thumbOffset))
+        {
+            mThumbOffset = tiff + thumbOffset;
+            mThumbLength = thumbLength;
+        }
+    }
+
+    private void readWebP()
+    {
+        int chunk = getInt(12, 4, false);
+        if (0x56503858 == chunk)
+        {
+            // VP8X, canvas size
+            mWidth = 1 + getInt(24, 3, true);
+            mHeight = 1 + getInt(27, 3, true);
+        }
+        else if (0x5650384C == chunk)
+        {
+            // VP8L, 14 bit sizes after the signature byte
+            int bits = getInt(21, 4, true);
+            mWidth = 1 + (bits & 0x3FFF);
+            mHeight = 1 + ((bits >> 14) & 0x3FFF);
+        }
+        else if (0x56503820 == chunk)
+        {
+            // VP8, sizes follow the frame tag and the start code
+            mWidth = getInt(26, 2, true) & 0x3FFF;
+            mHeight = getInt(28, 2, true) & 0x3FFF;
+        }
+    }
+    //endregion
+}
@@ -0,0 +1,84 @@
+package in.cpp.picoimg;
+
+import android.annotation.SuppressLint;
+import android.app.Activity;
+import android.app.Application;
+import android.os.Bundle;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+// Pauses, resumes and cancels request groups following their activity lifecycle
+@SuppressLint("NewApi")
+class LifecycleGroups implements Application.ActivityLifecycleCallbacks
+{
+    private static LifecycleGroups sInstance;
+    private final Map<Activity, Set<Object>> mGroups = new WeakHashMap<>();
+
+    static synchronized void bind(Activity activity, Object tag)
+    {
+        if (null == sInstance)
+        {
+            sInstance = new LifecycleGroups();
+            activity.getApplication().registerActivityLifecycleCallbacks(sInstance);
+        }
+        Set<Object> tags = sInstance.mGroups.get(activity);
+        if (null == tags)
+        {
+            tags = new HashSet<>();
+            sInstance.mGroups.put(activity, tags);
+        }
+        tags.add(tag);
+    }
+
+    private synchronized List<Object> getGroups(Activity activity, boolean remove)
+    {
+        Set<Object> tags = remove ? mGroups.remove(activity) : mGroups.get(activity);
+        return (null != tags) ? new ArrayList<>(tags) : new ArrayList<>();
+    }
+
+    @Override
+    public void onActivityStarted(Activity activity)
+    {
+        for (Object tag: getGroups(activity, false))
+            PicoImg.resume(tag);
+    }
+
+    @Override
+    public void onActivityStopped(Activity activity)
+    {
+        for (Object tag: getGroups(activity, false))
+            PicoImg.pause(tag);
+    }
+
+    @Override
+    public void onActivityDestroyed(Activity activity)
+    {
+        for (Object tag: getGroups(activity, true))
+            PicoImg.cancelGroup(tag);
+    }
+
+    @Override
+    public void onActivityCreated(Activity activity, Bundle state)
+    {
+    }
+
+    @Override
+    public void onActivityResumed(Activity activity)
+    {
+    }
+
+    @Override
+    public void onActivityPaused(Activity activity)
+    {
+    }
+
+    @Override
+    public void onActivitySaveInstanceState(Activity activity, Bundle state)
+    {
+    }
+}
@@ -0,0 +1,88 @@
+package in.cpp.picoimg;
+
+import android.os.MemoryFile;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Append-only byte storage in ashmem, it's not counted against the java heap limit
+class OffHeapStore
+{
+    private static final int PAGE_SIZE = 4096;
+    private static final int MAX_BLOCK_SIZE = 1 << 20;
+
+    // bytes stored, not the reserved block space
+    static final AtomicLong sUsage = new AtomicLong();
+
+    private final List<MemoryFile> mBlocks = new ArrayList<>();
+    private final List<Long> mStarts = new ArrayList<>();
+    private long mSize;
+    private long mCapacity;
+    private boolean mReleased;
+
+    synchronized long getSize()
+    {
+        return mSize;
+    }
+
+    synchronized void write(byte[] data, int offset, int length) throws IOException
+    {
+        if (mReleased)
+            throw new IOException("Store is released");
+        while (length > 0)
+        {
+            if (mSize == mCapacity)
+            {
+                // the first block fits the data at hand, the next ones double up to the limit
+                int last = mBlocks.isEmpty() ? 0 : mBlocks.get(mBlocks.size() - 1).length();
+                int size = Math.min(MAX_BLOCK_SIZE, Math.max(2 * last, (length + PAGE_SIZE - 1) / PAGE_SIZE * PAGE_SIZE));
+                mBlocks.add(new MemoryFile("picoimg", size));
+                mStarts.add(mCapacity);
+                mCapacity += size;
+            }
+            int block = mBlocks.size() - 1;
+            int fill = (int) (mSize - mStarts.get(block));
+            int count = (int) Math.min(length, mCapacity - mSize);
+            mBlocks.get(block).writeBytes(data, offset, fill, count);
+            offset += count;
+            length -= count;
+            mSize += count;
+            sUsage.addAndGet(count);
+        }
+    }
+
+    synchronized void read(long pos, byte[] buffer, int offset, int length) throws IOException
+    {
+        if (mReleased || (pos + length > mSize))
+            throw new IOException("Unexpected end of store");
+        int block = mBlocks.size() - 1;
+        while (length > 0)
+        {
+            while (mStarts.get(block) > pos)
+                --block;
+            while ((block + 1 < mBlocks.size()) && (mStarts.get(block + 1) <= pos))
+                ++block;
+            MemoryFile f = mBlocks.get(block);
+            int fill = (int) (pos - mStarts.get(block));
+            int count = Math.min(length, f.length() - fill);
+            f.readBytes(buffer, fill, offset, count);
+            offset += count;
+            length -= count;
+            pos += count;
+        }
+    }
+
+    synchronized void release()
+    {
+        if (mReleased)
+            return;
+        mReleased = true;
+        for (MemoryFile f: mBlocks)
+            f.close();
+        sUsage.addAndGet(-mSize);
+        mBlocks.clear();
+        mStarts.clear();
+    }
+}
@@ -2,22 +2,16 @@ package in.cpp.picoimg;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.graphics.Canvas;
-import android.graphics.Color;
-import android.graphics.PorterDuff;
-import android.graphics.Rect;
-import android.os.SystemClock;
 import android.util.Log;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.lang.ref.SoftReference;
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.zip.CRC32;
 
-class PNGState extends BaseState
+class PNGState extends AnimState
 {
     private static final byte[] PNG_HEADER = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
     private static final byte[] PNG_FOOTER = {0, 0, 0, 0, 'I', 'E', 'N', 'D', (byte) 0xAE, 0x42, 0x60, (byte) 0x82};
@@ -37,28 +31,48 @@ class PNGState extends BaseState
         byte[] mData;
     }
 
-    private static class Frame
+    private static class Span
+    {
+        long mPos;
+        int mLength;
+        boolean mFdat;
+    }
+
+    private static class PNGFrame extends Frame
     {
-        int mWidth;
-        int mHeight;
-        int mOffX;
-        int mOffY;
-        int mDelay;
-        int mDispose;
-        int mBlend;
         List<byte[]> mData;
-        SoftReference<Bitmap> mBitmap;
+        List<Span> mSpans;
+
+        void addSpan(long pos, int length, boolean fdat)
+        {
+            Span sp = new Span();
+            sp.mPos = pos;
+            sp.mLength = length;
+            sp.mFdat = fdat;
+            if (null == mSpans)
+                mSpans = new ArrayList<>(3);
+            mSpans.add(sp);
+        }
+
+        boolean hasData()
+        {
+            return (null != mData) || (null != mSpans);
+        }
     }
 
     // source data
     private byte[] mCommonHeader;
-    private Frame[] mFrames;
 
-    // playback
-    private Canvas mCanvas;
-    private int mPrevDispose;
-    private Rect mPrevRect;
-    private ByteBuffer mPrevPixels;
+    // parser state
+    private CountingInputStream mCounter;
+    private PNGFrame[] mParseFrames;
+    private List<byte[]> mSingleIdat;
+    private List<Chunk> mExtraChunks;
+    private final byte[] mIhdr = new byte[5];
+    private int mAnimSeq = -1;
+    private int mAnimFrame = -1;
+    private int mFramesOut;
+    private boolean mParsed;
 
     //region LOADER
     private static byte read_byte(InputStream inp) throws IOException
@@ -110,12 +124,16 @@ class PNGState extends BaseState
         return pos;
     }
 
-    PNGState(InputStream inp, int targetWidth, int targetHeight) throws IOException
+    PNGState(InputStream inp, int targetWidth, int targetHeight, File streamFile, int stateFlags, Bitmap.Config config) throws IOException
     {
-        List<byte[]> single_idat = null;
-        List<Chunk> extra_chunks = null;
-        byte bit_depth = 0, color_type = 0, compression_method = 0, filter_method = 0, interlace_method = 0;
-        int origWidth = 0, origHeight = 0;
+        super(config, stateFlags);
+
+        // streaming keeps frame data in the file, we only need to know where it is
+        if (null != streamFile)
+        {
+            openSource(streamFile);
+            inp = mCounter = new CountingInputStream(inp);
+        }
 
         // check header
         for (int i = 0; i < 8; ++i)
@@ -124,152 +142,35 @@ class PNGState extends BaseState
 
         try
         {
-            // read chunks
-            int anim_seq = -1;
-            int anim_frame = -1;
-            while (true)
+            // read chunks, progressive loading stops as soon as the first frame is complete
+            while (!mParsed)
             {
-                int len = read_int(inp);
-                int type = read_int(inp);
-
-                // handle known chunks
-                if ((CHUNK_IHDR == type) && (len == 13))
+                parseChunk(inp);
+                if ((0 != (stateFlags & (FLAG_PROGRESSIVE | FLAG_FIRST_FRAME))) && (mAnimFrame > 0))
                 {
-                    origWidth = mWidth = read_int(inp);
-                    origHeight = mHeight = read_int(inp);
-                    bit_depth = read_byte(inp);
-                    color_type = read_byte(inp);
-                    compression_method = read_byte(inp);
-                    filter_method = read_byte(inp);
-                    interlace_method = read_byte(inp);
-                    read_int(inp); // crc
-                    if ((targetWidth > 0) || (targetHeight > 0))
-                        scaleToTarget(targetWidth, targetHeight);
-                }
-                else if (CHUNK_IDAT == type)
-                {
-                    // read out the chunk contents
-                    byte[] data = new byte[len + 12];
-                    write_int(data, 0, len);
-                    write_int(data, 4, type);
-                    read_bytes(inp, data, 8, len);
-                    write_int(data, data.length - 4, read_int(inp)); // crc
-                    // save it somewhere
-                    if ((mFrames != null) && (anim_frame >= 0) && (anim_frame < mFrames.length))
-                    {
-                        if (null == mFrames[anim_frame].mData)
-                            mFrames[anim_frame].mData = new ArrayList<>(3);
-                        mFrames[anim_frame].mData.add(data);
-                    }
-                    else
-                    {
-                        if (null == single_idat)
-                            single_idat = new ArrayList<>(3);
-                        single_idat.add(data);
-                    }
-                }
-                else if ((CHUNK_ACTL == type) && (len == 8))
-                {
-                    // read out the chunk contents
-                    int frames = read_int(inp);
-                    mNumPlays = read_int(inp);
-                    read_int(inp); // crc
-                    // init frame array
-                    if (frames > 0)
-                    {
-                        mFrames = new Frame[frames];
-                        for (int i = 0; i < frames; ++i)
-                            mFrames[i] = new Frame();
-                    }
-                }
-                else if ((CHUNK_FCTL == type) && (len == 26))
-                {
-                    // read out the chunk contents
-                    int seq = read_int(inp);
-                    int width = read_int(inp);
-                    int height = read_int(inp);
-                    int offx = read_int(inp);
-                    int offy = read_int(inp);
-                    short delay_num = read_short(inp);
-                    short delay_den = read_short(inp);
-                    byte dispose = read_byte(inp);
-                    byte blend = read_byte(inp);
-                    read_int(inp); // crc
-                    // check animation sequence
-                    if (seq != ++anim_seq)
-                        Log.w("picoimg", "Wrong apng sequence, " + seq + " != " + anim_seq);
-                    // save
-                    if ((mFrames != null) && (anim_frame < mFrames.length))
-                    {
-                        ++anim_frame;
-                        mFrames[anim_frame].mWidth = width;
-                        mFrames[anim_frame].mHeight = height;
-                        mFrames[anim_frame].mOffX = offx;
-                        mFrames[anim_frame].mOffY = offy;
-                        mFrames[anim_frame].mDelay = (1000 * (int) delay_num) / ((delay_den != 0) ? delay_den : 100);
-                        mFrames[anim_frame].mDispose = dispose;
-                        mFrames[anim_frame].mBlend = blend;
-                    }
-                }
-                else if ((CHUNK_FDAT == type) && (len > 4))
-                {
-                    // read out the chunk contents
-                    int seq = read_int(inp);
-                    byte[] data = new byte[len + 8];
-                    write_int(data, 0, len - 4);
-                    write_int(data, 4, CHUNK_IDAT);
-                    read_bytes(inp, data, 8, len - 4);
-                    // handle crc
-                    read_int(inp);
-                    CRC32 crc = PicoImg.getCrc32();
-                    crc.reset();
-                    crc.update(data, 4, data.length - 8);
-                    write_int(data, data.length - 4, (int) crc.getValue());
-                    // check animation sequence
-                    if (seq != ++anim_seq)
-                        Log.w("picoimg", "Wrong apng sequence, " + seq + " != " + anim_seq);
-                    // save
-                    if ((mFrames != null) && (anim_frame >= 0) && (anim_frame < mFrames.length))
-                    {
-                        if (null == mFrames[anim_frame].mData)
-                            mFrames[anim_frame].mData = new ArrayList<>(3);
-                        mFrames[anim_frame].mData.add(data);
-                    }
-                }
-                else if (CHUNK_IEND == type)
-                {
-                    read_int(inp); // crc
+                    mParseInput = inp;
+                    mLoading = true;
                     break;
                 }
-                else
-                {
-                    Chunk c = new Chunk();
-                    c.mLength = len;
-                    c.mType = type;
-                    if (len > 0)
-                    {
-                        c.mData = new byte[len];
-                        read_bytes(inp, c.mData, 0, len);
-                    }
-                    c.mCrc = read_int(inp);
-                    if (null == extra_chunks)
-                        extra_chunks = new ArrayList<>(5);
-                    extra_chunks.add(c);
-                }
             }
         }
         catch (Throwable e)
         {
-            if (((mFrames != null) && (mFrames.length > 0)) || (single_idat != null))
+            if (((mParseFrames != null) && (mParseFrames.length > 0)) || (mSingleIdat != null))
                 e.printStackTrace();
             else
                 throw e;
         }
+        int origWidth = mWidth, origHeight = mHeight;
+        if ((targetWidth > 0) || (targetHeight > 0))
+            scaleToTarget(targetWidth, targetHeight);
+        // acTL has told the frame count by now, mFrames isn't set up yet
+        fitToBudget(4, canvasBuffers((null != mParseFrames) ? mParseFrames.length : 0, mLoading));
 
         // prepare common header buffer
         int size = 12 + 13; // IHDR
-        if (extra_chunks != null)
-            for (Chunk ch: extra_chunks)
+        if (mExtraChunks != null)
+            for (Chunk ch: mExtraChunks)
                 size += 12 + ch.mLength;
 
         // write ihdr
@@ -278,17 +179,14 @@ class PNGState extends BaseState
         pos = write_int(mCommonHeader, pos, CHUNK_IHDR);
         pos = write_int(mCommonHeader, pos, 0); // width
         pos = write_int(mCommonHeader, pos, 0); // height
-        mCommonHeader[pos++] = bit_depth;
-        mCommonHeader[pos++] = color_type;
-        mCommonHeader[pos++] = compression_method;
-        mCommonHeader[pos++] = filter_method;
-        mCommonHeader[pos++] = interlace_method;
+        System.arraycopy(mIhdr, 0, mCommonHeader, pos, mIhdr.length);
+        pos += mIhdr.length;
         pos = write_int(mCommonHeader, pos, 0); // crc placeholder
 
         // write extra chunks
-        if (null != extra_chunks)
+        if (null != mExtraChunks)
         {
-            for (Chunk ch: extra_chunks)
+            for (Chunk ch: mExtraChunks)
             {
                 pos = write_int(mCommonHeader, pos, ch.mLength);
                 pos = write_int(mCommonHeader, pos, ch.mType);
@@ -296,162 +194,305 @@ class PNGState extends BaseState
                 pos += ch.mLength;
                 pos = write_int(mCommonHeader, pos, ch.mCrc);
             }
+            mExtraChunks = null;
         }
 
         // load the first bitmap and prepare for animation rendering
-        if ((null != mFrames) && (mFrames[0].mData != null))
+        PNGFrame[] frames = mParseFrames;
+        List<byte[]> single_idat = mSingleIdat;
+        if ((null != frames) && frames[0].hasData())
         {
-            if (mFrames.length > 1)
+            // truncated file, play only the frames we've got
+            int count = 0;
+            while ((count < frames.length) && frames[count].hasData())
+                ++count;
+            if ((count > 1) || mLoading)
             {
-                mOutput = Bitmap.createBitmap(mWidth, mHeight, Bitmap.Config.ARGB_8888);
-                mCanvas = new Canvas(mOutput);
-                step();
+                mFramesOut = count;
+                mFrames = new ArrayList<>(count);
+                for (int i = 0; i < count; ++i)
+                {
+                    mFrames.add(frames[i]);
+                    // move the compressed data out of the heap
+                    if (mOffHeap)
+                        packFrame(frames[i]);
+                }
+                initPlayback();
             }
             else if (null == single_idat)
-                single_idat = mFrames[0].mData;
+                single_idat = getData(frames[0]);
         }
         if ((null == mOutput) && (null != single_idat))
-            mOutput = loadFrame(origWidth, origHeight, single_idat);
+        {
+            mOutput = loadFrame(origWidth, origHeight, single_idat, getDecodeConfig(config, stateFlags));
+            if ((null != mOutput) && useHardware(config, stateFlags))
+                toHardware();
+        }
+        mSingleIdat = null;
 
         // final check
         if (null == mOutput)
             throw new IOException("Decoder failed unexpectedly");
     }
 
-    private Bitmap loadFrame(int width, int height, List<byte[]> idat)
+    private void parseChunk(InputStream inp) throws IOException
     {
-        // update common header
-        write_int(mCommonHeader,8, width);
-        write_int(mCommonHeader, 12, height);
-        CRC32 crc = PicoImg.getCrc32();
-        crc.reset();
-        crc.update(mCommonHeader, 4, 17);
-        write_int(mCommonHeader, 21, (int) crc.getValue());
+        int len = read_int(inp);
+        int type = read_int(inp);
+        PNGFrame frame = ((mParseFrames != null) && (mAnimFrame >= 0) && (mAnimFrame < mParseFrames.length)) ? mParseFrames[mAnimFrame] : null;
 
-        // create buffer list
-        byte[][] bufs = new byte[idat.size() + 3][];
-        bufs[0] = PNG_HEADER;
-        bufs[1] = mCommonHeader;
-        for (int i = 0; i < idat.size(); ++i)
-            bufs[2 + i] = idat.get(i);
-        bufs[bufs.length - 1] = PNG_FOOTER;
-
-        // decode the resulting data
-        BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inJustDecodeBounds = false;
-        options.inSampleSize = 1 << mScaleShift;
-        return BitmapFactory.decodeStream(new MultipleArrayInputStream(bufs), null, options);
+        // handle known chunks
+        if ((CHUNK_IHDR == type) && (len == 13))
+        {
+            mWidth = read_int(inp);
+            mHeight = read_int(inp);
+            read_bytes(inp, mIhdr, 0, mIhdr.length); // bit depth, color type, compression, filter, interlace
+            read_int(inp); // crc
+        }
+        else if ((CHUNK_IDAT == type) && (null != mCounter) && (null != frame))
+        {
+            frame.addSpan(mCounter.getPosition() - 8, len + 12, false);
+            skipBytes(inp, len + 4);
+        }
+        else if (CHUNK_IDAT == type)
+        {
+            // read out the chunk contents
+            byte[] data = new byte[len + 12];
+            write_int(data, 0, len);
+            write_int(data, 4, type);
+            read_bytes(inp, data, 8, len);
+            write_int(data, data.length - 4, read_int(inp)); // crc
+            // save it somewhere
+            if (null != frame)
+            {
+                if (null == frame.mData)
+                    frame.mData = new ArrayList<>(3);
+                frame.mData.add(data);
+            }
+            else
+            {
+                if (null == mSingleIdat)
+                    mSingleIdat = new ArrayList<>(3);
+                mSingleIdat.add(data);
+            }
+        }
+        else if ((CHUNK_ACTL == type) && (len == 8))
+        {
+            // read out the chunk contents
+            int count = read_int(inp);
+            mNumPlays = read_int(inp);
+            read_int(inp); // crc
+            // init frame array
+            if (count > 0)
+            {
+                mParseFrames = new PNGFrame[count];
+                for (int i = 0; i < count; ++i)
+                    mParseFrames[i] = new PNGFrame();
+            }
+        }
+        else if ((CHUNK_FCTL == type) && (len == 26))
+        {
+            // read out the chunk contents
+            int seq = read_int(inp);
+            int width = read_int(inp);
+            int height = read_int(inp);
+            int offx = read_int(inp);
+            int offy = read_int(inp);
+            short delay_num = read_short(inp);
+            short delay_den = read_short(inp);
+            byte dispose = read_byte(inp);
+            byte blend = read_byte(inp);
+            read_int(inp); // crc
+            // check animation sequence
+            if (seq != ++mAnimSeq)
+                Log.w("picoimg", "Wrong apng sequence, " + seq + " != " + mAnimSeq);
+            // save
+            if ((mParseFrames != null) && (mAnimFrame < mParseFrames.length))
+            {
+                frame = mParseFrames[++mAnimFrame];
+                frame.mWidth = width;
+                frame.mHeight = height;
+                frame.mOffX = offx;
+                frame.mOffY = offy;
+                frame.mDelay = (1000 * (int) delay_num) / ((delay_den != 0) ? delay_den : 100);
+                frame.mDispose = (dispose == 2) ? DISPOSE_PREVIOUS : ((dispose == 1) ? DISPOSE_BACKGROUND : DISPOSE_NONE);
+                frame.mBlendSource = (blend == 0);
+            }
+        }
+        else if ((CHUNK_FDAT == type) && (len > 4))
+        {
+            int seq = read_int(inp);
+            // check animation sequence
+            if (seq != ++mAnimSeq)
+                Log.w("picoimg", "Wrong apng sequence, " + seq + " != " + mAnimSeq);
+            // remember the chunk location
+            if (null != mCounter)
+            {
+                if (null != frame)
+                    frame.addSpan(mCounter.getPosition(), len - 4, true);
+                skipBytes(inp, len);
+                return;
+            }
+            // read out the chunk contents
+            byte[] data = new byte[len + 8];
+            read_bytes(inp, data, 8, len - 4);
+            read_int(inp); // crc
+            fdatToIdat(data);
+            // save
+            if (null != frame)
+            {
+                if (null == frame.mData)
+                    frame.mData = new ArrayList<>(3);
+                frame.mData.add(data);
+            }
+        }
+        else if (CHUNK_IEND == type)
+        {
+            read_int(inp); // crc
+            mParsed = true;
+        }
+        else if (null != mCommonHeader)
+        {
+            // decoder header is built already, late chunks can't change it
+            skipBytes(inp, len + 4);
+        }
+        else
+        {
+            Chunk c = new Chunk();
+            c.mLength = len;
+            c.mType = type;
+            if (len > 0)
+            {
+                c.mData = new byte[len];
+                read_bytes(inp, c.mData, 0, len);
+            }
+            c.mCrc = read_int(inp);
+            if (null == mExtraChunks)
+                mExtraChunks = new ArrayList<>(5);
+            mExtraChunks.add(c);
+        }
     }
-    //endregion
 
-    //region RENDERER
-    private boolean mPreloadRunning;
-    private final Runnable mPreloadRunnable = new Runnable()
+    @Override
+    Frame parseFrame(InputStream inp) throws IOException
     {
-        @Override public void run()
+        // frame is complete once the next one starts or the file ends
+        while (!mParsed)
         {
-            mPreloadRunning = true;
-            Frame f = mFrames[mPlayFrame];
-            Bitmap bm = loadFrame(f.mWidth, f.mHeight, f.mData);
-            if (bm != null)
-                f.mBitmap = new SoftReference<>(bm);
-            mPreloadRunning = false;
+            parseChunk(inp);
+            if (mAnimFrame > mFramesOut)
+                return nextFrame();
         }
-    };
+        return (mFramesOut < mParseFrames.length) ? nextFrame() : null;
+    }
+
+    private Frame nextFrame()
+    {
+        PNGFrame f = mParseFrames[mFramesOut];
+        if (!f.hasData())
+            return null;
+        ++mFramesOut;
+        return f;
+    }
 
     @Override
-    protected void step()
+    int getHeapBytes(Frame frame)
     {
-        // not animated? return silently
-        if ((null == mFrames) || (mFrames.length < 2))
-            return;
+        List<byte[]> data = ((PNGFrame) frame).mData;
+        int bytes = 0;
+        if (null != data)
+            for (int i = 0; i < data.size(); ++i)
+                bytes += data.get(i).length;
+        return bytes;
+    }
 
-        // we're early, probably we have multiple active drawables.
-        // do nothing
-        long time = SystemClock.uptimeMillis();
-        if (time < mNextFrameTime)
+    @Override
+    void packFrame(Frame frame) throws IOException
+    {
+        PNGFrame f = (PNGFrame) frame;
+        if ((null != mCounter) || (null == f.mData))
             return;
+        int len = 0;
+        for (byte[] data: f.mData)
+            len += data.length;
+        f.addSpan(storeData(f.mData, 0), len, false);
+        f.mData = null;
+    }
 
-        // we're way late, probably there were no active drawables for some time.
-        // restart the animation
-        if (time > mNextFrameTime + 1000)
-            mPlayFrame = 0;
-
-        // get the frame
-        Frame f = mFrames[mPlayFrame];
-        mNextFrameTime = time + Math.max(1, f.mDelay);
-        int fx = f.mOffX >> mScaleShift, fy = f.mOffY >> mScaleShift, fw = f.mWidth >> mScaleShift, fh = f.mHeight >> mScaleShift;
-
-        // frame is still preloading
-        // we're already updated Next Frame Time, so just return
-        if (mPreloadRunning)
-            return;
+    private static void fdatToIdat(byte[] data)
+    {
+        // data holds fdAT payload at offset 8, turn it into IDAT chunk
+        write_int(data, 0, data.length - 12);
+        write_int(data, 4, CHUNK_IDAT);
+        CRC32 crc = PicoImg.getCrc32();
+        crc.reset();
+        crc.update(data, 4, data.length - 8);
+        write_int(data, data.length - 4, (int) crc.getValue());
+    }
 
-        // finish previous frame disposal
-        if (mPlayFrame == 0)
-        {
-            mCanvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
-            mPrevDispose = 0;
-        }
-        if (mPrevDispose == 2)
-        {
-            mPrevPixels.rewind();
-            mOutput.copyPixelsFromBuffer(mPrevPixels);
-        }
-        else if (mPrevDispose == 1)
+    private List<byte[]> getData(PNGFrame f) throws IOException
+    {
+        if ((null != f.mData) || (null == f.mSpans))
+            return f.mData;
+        List<byte[]> ret = new ArrayList<>(f.mSpans.size());
+        for (Span sp: f.mSpans)
         {
-            mCanvas.save();
-            mCanvas.clipRect(mPrevRect);
-            mCanvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
-            mCanvas.restore();
+            byte[] data;
+            if (sp.mFdat)
+            {
+                data = new byte[sp.mLength + 12];
+                readSource(sp.mPos, data, 8, sp.mLength);
+                fdatToIdat(data);
+            }
+            else
+            {
+                data = new byte[sp.mLength];
+                readSource(sp.mPos, data, 0, sp.mLength);
+            }
+            ret.add(data);
         }
+        return ret;
+    }
 
-        // prepare new frame disposal
-        mPrevDispose = f.mDispose;
-        if (mPrevDispose == 2)
-        {
-            if (null == mPrevPixels)
-                mPrevPixels = ByteBuffer.allocate(mOutput.getRowBytes() * mOutput.getHeight());
-            mPrevPixels.rewind();
-            mOutput.copyPixelsToBuffer(mPrevPixels);
-        }
-        else if (mPrevDispose == 1)
+    @Override
+    Bitmap loadFrame(Frame f)
+    {
+        try
         {
-            if (null == mPrevRect)
-                mPrevRect = new Rect();
-            mPrevRect.set(fx, fy, fx + fw, fy + fh);
+            return loadFrame(f.mWidth, f.mHeight, getData((PNGFrame) f), getFrameConfig(f));
         }
-
-        // prepare new frame composition
-        if (f.mBlend == 0)
+        catch (IOException e)
         {
-            mCanvas.save();
-            mCanvas.clipRect(fx, fy, fx + fw, fy + fh);
-            mCanvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
-            mCanvas.restore();
+            e.printStackTrace();
+            return null;
         }
+    }
 
-        // draw the frame
-        Bitmap bm = null;
-        if (null != f.mBitmap)
-            bm = f.mBitmap.get();
-        if (bm == null)
-        {
-            bm = loadFrame(f.mWidth, f.mHeight, f.mData);
-            if (bm != null)
-                f.mBitmap = new SoftReference<>(bm);
-        }
-        if (null != bm)
-            mCanvas.drawBitmap(bm, fx, fy, null);
+    private Bitmap loadFrame(int width, int height, List<byte[]> idat, Bitmap.Config config)
+    {
+        // update common header
+        write_int(mCommonHeader,8, width);
+        write_int(mCommonHeader, 12, height);
+        CRC32 crc = PicoImg.getCrc32();
+        crc.reset();
+        crc.update(mCommonHeader, 4, 17);
+        write_int(mCommonHeader, 21, (int) crc.getValue());
 
-        // step to the next frame
-        if (++mPlayFrame == mFrames.length)
-            mPlayFrame = 0;
+        // create buffer list
+        byte[][] bufs = new byte[idat.size() + 3][];
+        bufs[0] = PNG_HEADER;
+        bufs[1] = mCommonHeader;
+        for (int i = 0; i < idat.size(); ++i)
+            bufs[2 + i] = idat.get(i);
+        bufs[bufs.length - 1] = PNG_FOOTER;
 
-        // preload bitmap for the next frame
-        f = mFrames[mPlayFrame];
-        if ((null == f.mBitmap) || (null == f.mBitmap.get()))
-            PicoImg.sExecutor.execute(mPreloadRunnable);
+        // decode the resulting data
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = 1 << mScaleShift;
+        if (null != config)
+            options.inPreferredConfig = config;
+        return BitmapFactory.decodeStream(new MultipleArrayInputStream(bufs), null, options);
     }
     //endregion
 
@@ -465,10 +506,4 @@ class PNGState extends BaseState
         inp.reset();
         return ret;
     }
-
-    @Override
-    boolean isAnimated()
-    {
-        return (null != mFrames) && (mFrames.length > 1);
-    }
 }
@@ -1,5 +1,6 @@
 package in.cpp.picoimg;
 
+import android.annotation.SuppressLint;
 import android.graphics.Canvas;
 import android.graphics.ColorFilter;
 import android.graphics.Matrix;
@@ -7,6 +8,7 @@ import android.graphics.Paint;
 import android.graphics.PixelFormat;
 import android.graphics.Rect;
 import android.graphics.drawable.Drawable;
+import android.os.Build;
 
 public class PicoDrawable extends Drawable implements Runnable
 {
@@ -16,8 +18,14 @@ public class PicoDrawable extends Drawable implements Runnable
     private final boolean mPaintFilterByDefault = mPaint.isFilterBitmap();
 
     // animation
-    private long mDrawableNextFrameTime;
-    private int mPlayTimes;
+    long mDrawableNextFrameTime;
+    boolean mTickPending;
+    private int mPlayLoop;
+    // first-frame-only, stays still even if the shared state is animating until startAnimation()
+    boolean mHoldFrame;
+
+    // taken out of its view by cycleDrawable(), there's no getCallback() before Honeycomb to tell
+    boolean mDetached;
 
     // size
     private int mWidth;
@@ -60,6 +68,7 @@ public class PicoDrawable extends Drawable implements Runnable
         mHeight = height;
         mScaleType = scale;
         mConstantState = null;
+        mHoldFrame = false;
         mPaint.setAlpha(mAlpha = 255);
         mTransitionRunning = false;
         if (invalidate)
@@ -70,7 +79,7 @@ public class PicoDrawable extends Drawable implements Runnable
     {
         mPlaceholder = null;
         mConstantState = null;
-        PicoImg.sDrawableRecycler.push(this);
+        DrawablePool.release(this);
     }
 
     @Override
@@ -83,8 +92,9 @@ public class PicoDrawable extends Drawable implements Runnable
     {
         // attach to constant state
         mConstantState = state;
-        mDrawableNextFrameTime = mConstantState.mNextFrameTime;
-        mPaint.setFilterBitmap(!mConstantState.isAnimated() || mPaintFilterByDefault);
+        mDrawableNextFrameTime = mHoldFrame ? 0 : mConstantState.mNextFrameTime;
+        mPlayLoop = mConstantState.mPlayLoop;
+        mPaint.setFilterBitmap(!mConstantState.isAnimated() || mHoldFrame || mPaintFilterByDefault);
 
         // decide on fading in
         if (fadeSteps > 1)
@@ -111,6 +121,49 @@ public class PicoDrawable extends Drawable implements Runnable
         return (mConstantState != null) && mConstantState.isAnimated();
     }
 
+    public int getDuration()
+    {
+        return isAnimated() ? ((AnimState) mConstantState).getDuration() : 0;
+    }
+
+    public int getFrameCount()
+    {
+        return isAnimated() ? ((AnimState) mConstantState).getFrameCount() : 1;
+    }
+
+    public void seekTo(int millis)
+    {
+        if (!isAnimated())
+            return;
+        ((AnimState) mConstantState).seekTo(Math.max(0, millis));
+        // reschedule from the new position, this also restarts finished animation
+        mDrawableNextFrameTime = mConstantState.mNextFrameTime;
+        mPlayLoop = mConstantState.mPlayLoop;
+        invalidateSelf();
+    }
+
+    public void setFrame(int frame)
+    {
+        if (isAnimated())
+            seekTo(((AnimState) mConstantState).getFrameTime(frame));
+    }
+
+    public boolean startAnimation()
+    {
+        // first-frame-only image continues parsing from where it has stopped
+        if (!(mConstantState instanceof AnimState))
+            return false;
+        ((AnimState) mConstantState).resumeLoading();
+        if (!isAnimated())
+            return false;
+        mHoldFrame = false;
+        mDrawableNextFrameTime = mConstantState.mNextFrameTime;
+        mPlayLoop = mConstantState.mPlayLoop;
+        mPaint.setFilterBitmap(mPaintFilterByDefault);
+        invalidateSelf();
+        return true;
+    }
+
     private void scale(int l, int t, int r, int b)
     {
         mScale = 1;
@@ -120,12 +173,20 @@ public class PicoDrawable extends Drawable implements Runnable
         // calc scale
         int bits = mScaleType & PicoImg.SCALE_S_MASK;
         if (bits == PicoImg.SCALE_FILL)
+        {
+            mMatrix.setScale(((float) (r - l)) / mConstantState.mWidth, ((float) (b - t)) / mConstantState.mHeight);
+            mMatrix.postTranslate(l, t);
             return;
+        }
         else if (bits == PicoImg.SCALE_FIT)
             mScale = Math.min(((float) (r - l)) / mConstantState.mWidth, ((float) (b - t)) / mConstantState.mHeight);
         else if (bits == PicoImg.SCALE_CROP)
             mScale = Math.max(((float) (r - l)) / mConstantState.mWidth, ((float) (b - t)) / mConstantState.mHeight);
 
+        // bitmap is pre-scaled for this size, don't let rounding errors turn the blit into a resample
+        if (Math.abs(mScale - 1) * Math.max(mConstantState.mWidth, mConstantState.mHeight) < 1)
+            mScale = 1;
+
         // calculate shifts
         int width = (int) (mConstantState.mWidth * mScale);
         int height = (int) (mConstantState.mHeight * mScale);
@@ -144,8 +205,8 @@ public class PicoDrawable extends Drawable implements Runnable
         else
             mShiftY = (b + t - height) / 2;
 
-        // write matrix
-        if ((mScale != 1) || (mConstantState.mOrientation > 1))
+        // write matrix, tiles are always drawn through it
+        if ((mScale != 1) || (mConstantState.mOrientation > 1) || (null != mConstantState.mTiles))
         {
             // op #3, scale to size
             mMatrix.setScale(mScale, mScale);
@@ -196,18 +257,17 @@ public class PicoDrawable extends Drawable implements Runnable
             if (mTransitionRunning)
                 mPaint.setAlpha((int)(mAlpha * mTransitionProgress));
 
-            if ((mScaleType & PicoImg.SCALE_S_MASK) == PicoImg.SCALE_FILL)
-                canvas.drawBitmap(mConstantState.mOutput, null, getBounds(), mPaint);
+            if (null != mConstantState.mTiles)
+                mConstantState.mTiles.draw(canvas, mConstantState.getBitmap(), mMatrix, mPaint, this);
+            else if ((mScaleType & PicoImg.SCALE_S_MASK) == PicoImg.SCALE_FILL)
+                canvas.drawBitmap(mConstantState.getBitmap(), null, getBounds(), mPaint);
             else if ((mScale == 1) && (mConstantState.mOrientation <= 1))
-                canvas.drawBitmap(mConstantState.mOutput, mShiftX, mShiftY, mPaint);
+                canvas.drawBitmap(mConstantState.getBitmap(), mShiftX, mShiftY, mPaint);
             else
-                canvas.drawBitmap(mConstantState.mOutput, mMatrix, mPaint);
+                canvas.drawBitmap(mConstantState.getBitmap(), mMatrix, mPaint);
 
-            if (!mTransitionRunning && (0 != mDrawableNextFrameTime))
-            {
-                scheduleSelf(this, mDrawableNextFrameTime);
-                mDrawableNextFrameTime = 0;
-            }
+            if (!mTransitionRunning && (0 != mDrawableNextFrameTime) && isVisible())
+                AnimClock.schedule(this);
         }
     }
 
@@ -227,16 +287,49 @@ public class PicoDrawable extends Drawable implements Runnable
                 PicoImg.sHandler.postDelayed(this, mTransitionDelay);
             invalidateSelf();
         }
-        else if (null != mConstantState)
-        {
-            mConstantState.step();
-            mDrawableNextFrameTime = mConstantState.mNextFrameTime;
+    }
+
+    @SuppressLint("NewApi")
+    boolean isDetached()
+    {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB)
+            return null == getCallback();
+        return mDetached;
+    }
+
+    boolean onAnimationTick(long time)
+    {
+        // recycled, finished, hidden or detached from the view
+        if ((null == mConstantState) || (0 == mDrawableNextFrameTime) || !isVisible() || isDetached())
+            return true;
+        if (time < mDrawableNextFrameTime)
+            return false;
+
+        mConstantState.step();
+        mDrawableNextFrameTime = mConstantState.mNextFrameTime;
 
-            if ((0 == mConstantState.mPlayFrame) && (0 != mConstantState.mNumPlays) && (++mPlayTimes == mConstantState.mNumPlays))
-                mDrawableNextFrameTime = 0;
+        if ((0 != mConstantState.mNumPlays) && ((mConstantState.mPlayLoop - mPlayLoop) >= mConstantState.mNumPlays))
+            mDrawableNextFrameTime = 0;
+
+        invalidateSelf();
+        return true;
+    }
 
+    @Override
+    public boolean setVisible(boolean visible, boolean restart)
+    {
+        boolean changed = super.setVisible(visible, restart);
+        // the state is shared with other drawables, restart only our own loop count
+        if (visible && restart && isAnimated() && !mHoldFrame)
+        {
+            mDrawableNextFrameTime = mConstantState.mNextFrameTime;
+            mPlayLoop = mConstantState.mPlayLoop;
             invalidateSelf();
         }
+        // hidden drawables are dropped by the clock, the next draw() brings them back
+        else if (visible && changed)
+            invalidateSelf();
+        return changed;
     }
 
     @Override
@@ -1,27 +1,32 @@
 package in.cpp.picoimg;
 
+import android.app.Activity;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.graphics.drawable.Drawable;
+import android.os.Build;
 import android.os.Environment;
 import android.os.Handler;
 import android.text.TextUtils;
+import android.widget.AbsListView;
 import android.widget.ImageView;
 
 import java.io.File;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.SoftReference;
-import java.util.EmptyStackException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Stack;
-import java.util.Vector;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.CRC32;
@@ -44,7 +49,12 @@ public class PicoImg
     static Handler sHandler;
     static Executor sExecutor;
     static Map<String, SoftReference<BaseState>> sRamCache;
-    static List<PicoImgRequest> sRequests;
+    private static ReferenceQueue<BaseState> sRamCacheQueue;
+    // running requests, indexed by the target view and by the input key for the linking
+    static Map<PicoImgRequest, Boolean> sRequests;
+    // weak values, a request holds its view and would keep the weak key alive
+    private static Map<ImageView, List<WeakReference<PicoImgRequest>>> sByView;
+    static ConcurrentHashMap<String, PicoImgRequest> sByKey;
     private static String sCachePath;
     static File sCacheDir;
     private static boolean sCacheExt;
@@ -55,8 +65,24 @@ public class PicoImg
     private static AtomicBoolean sCleanupRunning;
     static AtomicInteger sID;
 
-    static Stack<PicoDrawable> sDrawableRecycler;
+    // requests held back while their tag is paused
+    private static final Set<Object> sPausedTags = new HashSet<>();
+    private static final List<PicoImgRequest> sPaused = new ArrayList<>();
 
+    // share of the free heap a single image may take
+    private static volatile float sMemoryFraction = 0.25f;
+
+    // ram cache entry which is dropped from the map once the state is collected
+    private static class CacheRef extends SoftReference<BaseState>
+    {
+        final String mKey;
+
+        CacheRef(String key, BaseState state)
+        {
+            super(state, sRamCacheQueue);
+            mKey = key;
+        }
+    }
 
     public static void init(Context ctx, String cacheDir, long cacheLimit)
     {
@@ -70,18 +96,21 @@ public class PicoImg
         // AsyncTask.SERIAL_EXECUTOR will only run tasks one at a time and
         // AsyncTask.THREAD_POOL_EXECUTOR has a limited size queue with some catastrophic consequences on overflow
         int threads = 1 + Math.min(Math.max(Runtime.getRuntime().availableProcessors(), 2), 4);
-        sExecutor = new ThreadPoolExecutor(threads, threads, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        sExecutor = new PriorityExecutor(threads);
 
         // create maps
         sRamCache = new HashMap<>();
-        sRequests = new Vector<>(30);
-        sDrawableRecycler = new Stack<>();
+        sRamCacheQueue = new ReferenceQueue<>();
+        sRequests = new ConcurrentHashMap<>(32);
+        sByView = new WeakHashMap<>();
+        sByKey = new ConcurrentHashMap<>(32);
 
         // initialize cache
         sCachePath = cacheDir;
         sCacheLimit = cacheLimit;
         initCachePath(ctx, false);
         initDB(ctx);
+        DrawablePool.register(ctx);
     }
 
     private static void initCachePath(Context ctx, boolean intOnly)
@@ -178,21 +207,242 @@ public class PicoImg
         return crc32;
     }
 
+    static void cacheState(String key, BaseState state)
+    {
+        synchronized (sRamCache)
+        {
+            // drop whatever was collected since the last time
+            CacheRef ref;
+            while (null != (ref = (CacheRef) sRamCacheQueue.poll()))
+            {
+                if (sRamCache.get(ref.mKey) == ref)
+                    sRamCache.remove(ref.mKey);
+            }
+            sRamCache.put(key, new CacheRef(key, state));
+        }
+        AnimState.releaseCollected();
+    }
+
+    public static long getOffHeapUsage()
+    {
+        AnimState.releaseCollected();
+        return OffHeapStore.sUsage.get();
+    }
+
+    public static long getHeapUsage()
+    {
+        return AnimState.getHeapUsage();
+    }
+
     public static void cancel(ImageView v)
     {
-        synchronized (sRequests)
+        // every live request for the view, not just the latest one
+        List<WeakReference<PicoImgRequest>> refs;
+        synchronized (sByView)
         {
-            for (PicoImgRequest r: PicoImg.sRequests)
-                if (v.equals(r.mTargetView))
+            refs = sByView.remove(v);
+        }
+        if (null != refs)
+            for (WeakReference<PicoImgRequest> ref: refs)
+            {
+                PicoImgRequest r = ref.get();
+                if (null != r)
                     r.cancel();
+            }
+    }
+
+    static void track(PicoImgRequest r)
+    {
+        sRequests.put(r, Boolean.TRUE);
+        if (null != r.mTargetView)
+        {
+            synchronized (sByView)
+            {
+                List<WeakReference<PicoImgRequest>> refs = sByView.get(r.mTargetView);
+                if (null == refs)
+                    sByView.put(r.mTargetView, refs = new ArrayList<>(2));
+                else
+                    forget(refs, r);
+                refs.add(new WeakReference<>(r));
+            }
         }
     }
 
+    static void untrack(PicoImgRequest r)
+    {
+        sRequests.remove(r);
+        // the view may have newer requests too, the key may already belong to one
+        if (null != r.mTargetView)
+        {
+            synchronized (sByView)
+            {
+                List<WeakReference<PicoImgRequest>> refs = sByView.get(r.mTargetView);
+                if (null != refs)
+                {
+                    forget(refs, r);
+                    if (refs.isEmpty())
+                        sByView.remove(r.mTargetView);
+                }
+            }
+        }
+        if (null != r.mInputKey)
+            sByKey.remove(r.mInputKey, r);
+    }
+
+    // drop the request and the ones already collected
+    private static void forget(List<WeakReference<PicoImgRequest>> refs, PicoImgRequest r)
+    {
+        for (Iterator<WeakReference<PicoImgRequest>> it = refs.iterator(); it.hasNext();)
+        {
+            PicoImgRequest o = it.next().get();
+            if ((null == o) || (o == r))
+                it.remove();
+        }
+    }
+
+    public static void pause(Object tag)
+    {
+        checkTag(tag);
+        synchronized (sPausedTags)
+        {
+            sPausedTags.add(tag);
+        }
+    }
+
+    public static void resume(Object tag)
+    {
+        checkTag(tag);
+        List<PicoImgRequest> ready = new ArrayList<>();
+        synchronized (sPausedTags)
+        {
+            sPausedTags.remove(tag);
+            for (Iterator<PicoImgRequest> it = sPaused.iterator(); it.hasNext();)
+            {
+                PicoImgRequest r = it.next();
+                if (tag.equals(r.mTag))
+                {
+                    it.remove();
+                    ready.add(r);
+                }
+            }
+        }
+        for (PicoImgRequest r: ready)
+            sExecutor.execute(r);
+    }
+
+    // untagged requests aren't a group, fail right away rather than halfway through a scan
+    private static void checkTag(Object tag)
+    {
+        if (null == tag)
+            throw new IllegalArgumentException("Group tag must not be null");
+    }
+
+    public static void cancelGroup(Object tag)
+    {
+        checkTag(tag);
+        synchronized (sPausedTags)
+        {
+            sPausedTags.remove(tag);
+        }
+        for (PicoImgRequest r: sRequests.keySet())
+            if (tag.equals(r.mTag))
+                r.cancel();
+    }
+
+    public static void bindGroup(Activity activity, Object tag)
+    {
+        checkTag(tag);
+        // the group is paused while the activity is stopped and cancelled when it's destroyed
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+            LifecycleGroups.bind(activity, tag);
+    }
+
+    public static AbsListView.OnScrollListener pauseOnFling(final Object tag)
+    {
+        return new AbsListView.OnScrollListener()
+        {
+            @Override
+            public void onScrollStateChanged(AbsListView v, int state)
+            {
+                if (SCROLL_STATE_FLING == state)
+                    pause(tag);
+                else
+                    resume(tag);
+            }
+
+            @Override
+            public void onScroll(AbsListView v, int first, int visible, int total)
+            {
+            }
+        };
+    }
+
+    static void dispatch(PicoImgRequest r)
+    {
+        // paused requests wait in the list instead of taking the workers
+        synchronized (sPausedTags)
+        {
+            if ((null != r.mTag) && sPausedTags.contains(r.mTag))
+            {
+                sPaused.add(r);
+                return;
+            }
+        }
+        sExecutor.execute(r);
+    }
+
+    static boolean undispatch(PicoImgRequest r)
+    {
+        synchronized (sPausedTags)
+        {
+            return sPaused.remove(r);
+        }
+    }
+
+    public static void pauseAnimations()
+    {
+        AnimClock.pause();
+    }
+
+    public static void resumeAnimations()
+    {
+        AnimClock.resume();
+    }
+
+    public static void setMaxAnimationFps(int fps)
+    {
+        AnimClock.setMaxFps(fps);
+    }
+
+    public static void setMaxResultsPerFrame(int max)
+    {
+        PublishQueue.setMaxPerFrame(max);
+    }
+
+    public static void setMemoryBudget(float fraction)
+    {
+        sMemoryFraction = fraction;
+    }
+
+    static long getMemoryBudget()
+    {
+        float fraction = sMemoryFraction;
+        if (fraction <= 0)
+            return 0;
+        Runtime rt = Runtime.getRuntime();
+        return (long) (fraction * (rt.maxMemory() - rt.totalMemory() + rt.freeMemory()));
+    }
+
     public static long getCacheUsage()
     {
         return sCacheSize;
     }
 
+    public static void setDrawablePoolSize(int size)
+    {
+        DrawablePool.setCapacity(size);
+    }
+
     public static void setCacheSize(long limit)
     {
         sCacheLimit = limit;
@@ -289,20 +539,16 @@ public class PicoImg
         }
 
         // go with the new drawable
-        PicoDrawable newDrawable;
-        try
-        {
-            newDrawable = sDrawableRecycler.pop();
-        }
-        catch (EmptyStackException e)
-        {
-            newDrawable = new PicoDrawable();
-        }
+        PicoDrawable newDrawable = DrawablePool.acquire();
         newDrawable.init(placeholder, width, height, scale);
+        newDrawable.mDetached = false;
         if (null != v)
             v.setImageDrawable(newDrawable);
         if (null != prevDrawable)
+        {
+            ((PicoDrawable) prevDrawable).mDetached = true;
             ((PicoDrawable) prevDrawable).recycle();
+        }
         return newDrawable;
     }
 
@@ -2,13 +2,17 @@ package in.cpp.picoimg;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.res.Resources;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.graphics.Bitmap;
 import android.graphics.drawable.Drawable;
 import android.os.Looper;
 import android.text.TextUtils;
 import android.util.DisplayMetrics;
+import android.view.View;
 import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
 import android.widget.ImageView;
 
 import java.io.BufferedInputStream;
@@ -20,6 +24,8 @@ import java.io.InputStream;
 import java.lang.ref.SoftReference;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
 
 public class PicoImgRequest implements Runnable
 {
@@ -30,6 +36,14 @@ public class PicoImgRequest implements Runnable
         void onPicoImgError(PicoImgRequest r, Throwable e);
     }
 
+    public interface Transformation
+    {
+        // unique for the transformation and its parameters, becomes a part of the cache key
+        String getKey();
+        // runs on the worker thread, must not modify or recycle the source, the result isn't kept by animations
+        Bitmap transform(Bitmap source);
+    }
+
     public static class CancelledException extends IOException {}
 
     private final Context mContext;
@@ -40,7 +54,7 @@ public class PicoImgRequest implements Runnable
     private int mInputResId;
     private String mInputAsset;
     private String mInputUrl;
-    private String mInputKey;
+    String mInputKey;
 
     // setup
     private boolean mDisableAnimation;
@@ -56,6 +70,24 @@ public class PicoImgRequest implements Runnable
     private int mResizeWidth;
     private int mResizeHeight;
     private int mScaleType = PicoImg.SCALE_FIT;
+    private int mSnapshots;
+    private long mRingPixels;
+    private boolean mStreaming;
+    private boolean mOffHeap;
+    private boolean mProgressive;
+    private boolean mFirstFrameOnly;
+    private List<Transformation> mTransforms;
+    Object mTag;
+    private boolean mExactSize;
+    private boolean mTiled;
+    private Bitmap.Config mConfig;
+    private boolean mAutoConfig;
+    private boolean mThumbnailPreview;
+    private PicoImgRequest mThumbnail;
+    // taken by the workers before the normal requests
+    boolean mHighPriority;
+    private volatile boolean mWaitForLayout;
+    private ViewTreeObserver.OnGlobalLayoutListener mLayoutListener;
 
     // target
     ImageView mTargetView;
@@ -71,6 +103,7 @@ public class PicoImgRequest implements Runnable
     private int mAppId;
     private Object mAppObj;
     BaseState mResult;
+    private boolean mResultOwned;
     private PicoDrawable mDrawable;
     private Throwable mResultError;
 
@@ -164,6 +197,13 @@ public class PicoImgRequest implements Runnable
         return this;
     }
 
+    public PicoImgRequest sizeToView(boolean waitForLayout)
+    {
+        sizeToView();
+        mWaitForLayout = waitForLayout && (null != mTargetView) && ((mResizeWidth <= 0) || (mResizeHeight <= 0));
+        return this;
+    }
+
     public PicoImgRequest sizeToScreen()
     {
         DisplayMetrics m = mContext.getResources().getDisplayMetrics();
@@ -184,6 +224,97 @@ public class PicoImgRequest implements Runnable
         return this;
     }
 
+    public PicoImgRequest cacheFrames(long maxPixels)
+    {
+        mRingPixels = maxPixels;
+        return this;
+    }
+
+    public PicoImgRequest firstFrameOnly(boolean firstFrameOnly)
+    {
+        mFirstFrameOnly = firstFrameOnly;
+        return this;
+    }
+
+    public PicoImgRequest snapshots(int maxSnapshots)
+    {
+        mSnapshots = maxSnapshots;
+        return this;
+    }
+
+    public PicoImgRequest streaming(boolean streaming)
+    {
+        mStreaming = streaming;
+        return this;
+    }
+
+    public PicoImgRequest offHeap(boolean offHeap)
+    {
+        mOffHeap = offHeap;
+        return this;
+    }
+
+    public PicoImgRequest progressive(boolean progressive)
+    {
+        mProgressive = progressive;
+        return this;
+    }
+
+    public PicoImgRequest exactSize(boolean exactSize)
+    {
+        mExactSize = exactSize;
+        return this;
+    }
+
+    public PicoImgRequest tiled(boolean tiled)
+    {
+        mTiled = tiled;
+        return this;
+    }
+
+    public PicoImgRequest preferredConfig(Bitmap.Config config)
+    {
+        mConfig = config;
+        return this;
+    }
+
+    public PicoImgRequest autoConfig(boolean auto)
+    {
+        mAutoConfig = auto;
+        return this;
+    }
+
+    public PicoImgRequest thumbnailPreview(boolean preview)
+    {
+        mThumbnailPreview = preview;
+        return this;
+    }
+
+    public PicoImgRequest thumbnail(String url)
+    {
+        return thumbnail(new PicoImgRequest(mContext, url, true));
+    }
+
+    public PicoImgRequest thumbnail(PicoImgRequest thumbnail)
+    {
+        mThumbnail = thumbnail;
+        return this;
+    }
+
+    public PicoImgRequest transform(Transformation t)
+    {
+        if (null == mTransforms)
+            mTransforms = new ArrayList<>();
+        mTransforms.add(t);
+        return this;
+    }
+
+    public PicoImgRequest tag(Object tag)
+    {
+        mTag = tag;
+        return this;
+    }
+
     public PicoImgRequest cacheKey(String key)
     {
         mInputKey = key;
@@ -210,13 +341,26 @@ public class PicoImgRequest implements Runnable
         // this is the second invocation running on the UI thread
         if (mDone)
         {
+            // thumbnail is late, nobody needs it anymore
+            if (null != mThumbnail)
+                mThumbnail.cancel();
+
             // publish the result
             if (!mCancelled)
             {
                 if (mResult != null)
                 {
+                    // first-frame-only state from the ram cache gets upgraded for us
+                    if (!mFirstFrameOnly && (mResult instanceof AnimState))
+                        ((AnimState) mResult).resumeLoading();
+                    if ((mSnapshots > 0) && (mResult instanceof AnimState))
+                        ((AnimState) mResult).enableSnapshots(mSnapshots);
+                    if ((mRingPixels > 0) && (mResult instanceof AnimState))
+                        ((AnimState) mResult).enableRing(mRingPixels);
                     if (null == mDrawable)
                         mDrawable = PicoImg.cycleDrawable(mTargetView, mPlaceholderDrawable, ((mResizeWidth > 0) && (mResizeHeight > 0)) ? mResizeWidth : mResult.mWidth, ((mResizeWidth > 0) && (mResizeHeight > 0)) ? mResizeHeight : mResult.mHeight, mScaleType);
+                    // the cached state may be animating for someone else already
+                    mDrawable.mHoldFrame = mFirstFrameOnly;
                     mDrawable.setConstantState(mResult, (mTargetView != null) ? mFadeSteps : 0, mFadeDuration);
                     if (null != mTargetCallback)
                         mTargetCallback.onPicoImgResult(this, mDrawable);
@@ -224,18 +368,21 @@ public class PicoImgRequest implements Runnable
                 else if ((mTargetView != null) && (mDrawable == null) && (mPlaceholderDrawable == null))
                     mTargetView.setImageResource(android.R.color.transparent);
             }
-            else if ((null != mTargetCallback) && (null == mResultError))
-                mResultError = new CancelledException();
+            else
+            {
+                // nobody else has seen the state we've decoded, no need to wait for the gc
+                if (mResultOwned && (mResult instanceof AnimState))
+                    ((AnimState) mResult).release();
+                if ((null != mTargetCallback) && (null == mResultError))
+                    mResultError = new CancelledException();
+            }
 
             // propagate the error
             if ((mResultError != null) && (null != mTargetCallback))
                 mTargetCallback.onPicoImgError(this, mResultError);
 
             // remove ourselves from the list
-            synchronized (PicoImg.sRequests)
-            {
-                PicoImg.sRequests.remove(this);
-            }
+            PicoImg.untrack(this);
 
             // done
             return;
@@ -249,30 +396,24 @@ public class PicoImgRequest implements Runnable
         // try to link to other request with the same input & ensure we're on the request list
         if (!mLinkingPassDone)
         {
-            synchronized (PicoImg.sRequests)
+            PicoImg.track(this);
+            if (null != mInputKey)
             {
-                boolean foundSelf = false;
-                for (PicoImgRequest r: PicoImg.sRequests)
+                // we become the tail of the chain, the previous tail runs us when done
+                PicoImgRequest r = PicoImg.sByKey.put(mInputKey, this);
+                if ((null != r) && (r != this))
                 {
-                    if (r.equals(this))
-                        foundSelf = true;
-                    else if (!mLinked && (null != mInputKey) && mInputKey.equals(r.mInputKey) && r.mLinkingPassDone && (null == r.mLinkNext))
+                    synchronized (r)
                     {
-                        synchronized (r)
+                        if (!r.mDone && (null == r.mLinkNext))
                         {
-                            if (!r.mDone)
-                            {
-                                r.mLinkNext = this;
-                                mLinked = true;
-                            }
+                            r.mLinkNext = this;
+                            mLinked = true;
                         }
                     }
                 }
-                mLinkingPassDone = true;
-                // add ourselves
-                if (!foundSelf)
-                    PicoImg.sRequests.add(this);
             }
+            mLinkingPassDone = true;
             // don't proceed now if we are now linked to another request
             if (mLinked)
                 return;
@@ -344,7 +485,9 @@ public class PicoImgRequest implements Runnable
                         {
                             int size = conn.getContentLength(), read, total = 0;
                             InputStream is = conn.getInputStream();
-                            FileOutputStream os = new FileOutputStream(cacheFile);
+                            // existing entry is downloaded aside, streaming decoders may be reading it
+                            File tmpFile = (cacheKey < 0) ? cacheFile : new File(PicoImg.sCacheDir, String.valueOf(-PicoImg.sID.incrementAndGet()));
+                            FileOutputStream os = new FileOutputStream(tmpFile);
                             byte[] buf = new byte[4096];
                             // do the pumping
                             while (0 < (read = is.read(buf, 0, buf.length)))
@@ -358,9 +501,18 @@ public class PicoImgRequest implements Runnable
                             }
                             is.close();
                             os.close();
-                            if (mCancelled && ((total == 0) || (size != total)))
+                            boolean cancelled = mCancelled && ((total == 0) || (size != total));
+                            boolean truncated = (size > 0) && (size != total);
+                            // only a complete download replaces the old file, in one rename, open channels keep the old data
+                            if ((tmpFile != cacheFile) && (cancelled || truncated || !tmpFile.renameTo(cacheFile)))
+                            {
+                                tmpFile.delete();
+                                if (!cancelled && !truncated)
+                                    throw new IOException("Unable to replace cache file: " + cacheFile.getAbsolutePath());
+                            }
+                            if (cancelled)
                                 throw new CancelledException();
-                            if ((size > 0) && (size != total))
+                            if (truncated)
                                 throw new IOException("Server promised " + size + " bytes and sent " + total);
                             // update disk cache
                             if (mCacheDiskStore)
@@ -426,18 +578,63 @@ public class PicoImgRequest implements Runnable
                 // we need to seek the stream to allow type guessing
                 if (!inp.markSupported())
                     inp = new BufferedInputStream(inp);
+                // suspended animation closes the stream and reopens it at the parsed offset
+                if (mFirstFrameOnly && !mDisableAnimation)
+                    inp = new CountingInputStream(inp);
 
                 // create factory
+                File streamFile = mStreaming ? cacheFile : null;
+                int stateFlags = (mOffHeap ? BaseState.FLAG_OFF_HEAP : 0) | (mProgressive ? BaseState.FLAG_PROGRESSIVE : 0) | (mExactSize ? BaseState.FLAG_EXACT_SIZE : 0) | (mTiled ? BaseState.FLAG_TILED : 0) | (mAutoConfig ? BaseState.FLAG_AUTO_CONFIG : 0) | (mFirstFrameOnly ? BaseState.FLAG_FIRST_FRAME : 0);
+                // transformations need a software bitmap, hardware upload comes after them
+                boolean hardware = BaseState.useHardware(mConfig, stateFlags);
+                if (null != mTransforms)
+                    stateFlags |= BaseState.FLAG_SOFTWARE;
                 if (!mDisableAnimation && PNGState.check(inp))
-                    mResult = new PNGState(inp, mResizeWidth, mResizeHeight);
+                    mResult = new PNGState(inp, mResizeWidth, mResizeHeight, streamFile, stateFlags, mConfig);
                 else if (!mDisableAnimation && GIFState.check(inp))
-                    mResult = new GIFState(inp, mResizeWidth, mResizeHeight);
+                    mResult = new GIFState(inp, mResizeWidth, mResizeHeight, streamFile, stateFlags, mConfig);
+                else if (!mDisableAnimation && WebPState.check(inp))
+                    mResult = new WebPState(inp, mResizeWidth, mResizeHeight, streamFile, stateFlags, mConfig);
                 else
-                    mResult = new BaseState(inp, mResizeWidth, mResizeHeight, mContext, mInputResId, mInputAsset, cacheFile);
+                {
+                    BaseState.PreviewListener preview = null;
+                    if (mThumbnailPreview && (null != mTargetView))
+                    {
+                        preview = new BaseState.PreviewListener()
+                        {
+                            @Override
+                            public void onPreview(BaseState state, int width, int height)
+                            {
+                                if (null != mTransforms)
+                                    state.applyTransforms(mTransforms, false);
+                                showPreview(state, width, height);
+                            }
+                        };
+                    }
+                    mResult = new BaseState(inp, mResizeWidth, mResizeHeight, mScaleType, stateFlags, mConfig, mContext, mInputResId, mInputAsset, cacheFile, preview);
+                }
+
+                // animations get every composed frame transformed
+                if (null != mTransforms)
+                    mResult.applyTransforms(mTransforms, hardware);
+
+                // the rest of the frames are parsed in background or on demand, the state owns the stream now
+                if (mResult instanceof AnimState)
+                {
+                    AnimState anim = (AnimState) mResult;
+                    if (mFirstFrameOnly ? anim.suspendLoading(getSourceOpener((cacheKey >= 0) ? cacheFile : null)) : anim.startLoading())
+                        inp = null;
+                }
+
+                // let the texture upload start here rather than on the first draw
+                if (null != mResult.getBitmap())
+                    mResult.getBitmap().prepareToDraw();
 
                 // cache to ram
                 if (mCacheRamStore && (null != mRamKey))
-                    PicoImg.sRamCache.put(mRamKey, new SoftReference<>(mResult));
+                    PicoImg.cacheState(mRamKey, mResult);
+                else
+                    mResultOwned = true;
             }
             catch (Throwable e)
             {
@@ -453,6 +650,7 @@ public class PicoImgRequest implements Runnable
                 try { inp.close(); }
                 catch (Throwable e) { e.printStackTrace(); }
             }
+            // a streaming decoder keeps reading the unlinked file through its open channel
             if ((cacheKey < 0) && (null != cacheFile))
                 cacheFile.delete();
         }
@@ -467,7 +665,7 @@ public class PicoImgRequest implements Runnable
         if (Looper.getMainLooper().equals(Looper.myLooper()))
             run();
         else
-            PicoImg.sHandler.post(this);
+            PublishQueue.post(this);
 
         // restart next linked request
         if (null != mLinkNext)
@@ -478,6 +676,25 @@ public class PicoImgRequest implements Runnable
     {
         boolean mainThread = Looper.getMainLooper().equals(Looper.myLooper());
 
+        // the view size is unknown yet, start after the layout
+        if (mWaitForLayout && mainThread)
+        {
+            PicoImg.cancel(mTargetView);
+            if (null != mPlaceholderDrawable)
+                mTargetView.setImageDrawable(mPlaceholderDrawable);
+            PicoImg.track(this);
+            mLayoutListener = new ViewTreeObserver.OnGlobalLayoutListener()
+            {
+                @Override
+                public void onGlobalLayout()
+                {
+                    onLayoutDone();
+                }
+            };
+            mTargetView.getViewTreeObserver().addOnGlobalLayoutListener(mLayoutListener);
+            return;
+        }
+
         // configure cache keys
         if ((null != mInputKey) && (mRamKey == null))
             generateRamKey();
@@ -516,18 +733,140 @@ public class PicoImgRequest implements Runnable
         }
 
         // add this request to the list of running requests
-        synchronized (PicoImg.sRequests)
+        PicoImg.track(this);
+
+        // thumbnail jumps the queue and shows up as soon as it's ready
+        if ((null != mThumbnail) && (null != mTargetView))
+            runThumbnail();
+
+        // schedule background worker
+        PicoImg.dispatch(this);
+    }
+
+    private void showPreview(final BaseState preview, final int width, final int height)
+    {
+        PicoImg.sHandler.post(new Runnable()
         {
-            PicoImg.sRequests.add(this);
+            @Override
+            public void run()
+            {
+                applyPreview(preview, width, height);
+            }
+        });
+    }
+
+    private void applyPreview(BaseState preview, int width, int height)
+    {
+        // the full image may be already there
+        if (mCancelled || mDone)
+            return;
+
+        // preview acts as the placeholder, so the full image fades in over it
+        int w = ((mResizeWidth > 0) && (mResizeHeight > 0)) ? mResizeWidth : width;
+        int h = ((mResizeWidth > 0) && (mResizeHeight > 0)) ? mResizeHeight : height;
+        PicoDrawable d = new PicoDrawable();
+        d.init(null, w, h, mScaleType);
+        d.setConstantState(preview, 0, 0);
+        mDrawable = PicoImg.cycleDrawable(mTargetView, d, w, h, mScaleType);
+        d.setBounds(mDrawable.getBounds());
+        mDrawable.invalidateSelf();
+    }
+
+    private void runThumbnail()
+    {
+        // thumbnail borrows our size and reports to us instead of a view
+        PicoImgRequest t = mThumbnail;
+        if ((t.mResizeWidth <= 0) && (t.mResizeHeight <= 0))
+        {
+            t.mResizeWidth = mResizeWidth;
+            t.mResizeHeight = mResizeHeight;
+            t.mScaleType = mScaleType;
         }
+        if (null == t.mTag)
+            t.mTag = mTag;
+        t.mHighPriority = true;
+        t.mTargetView = null;
+        t.mTargetCallback = new TargetCallback()
+        {
+            @Override
+            public void onPicoImgProgress(PicoImgRequest r, int progress, int total)
+            {
+            }
 
-        // schedule background worker
-        PicoImg.sExecutor.execute(this);
+            @Override
+            public void onPicoImgResult(PicoImgRequest r, PicoDrawable d)
+            {
+                applyPreview(r.mResult, r.mResult.mWidth, r.mResult.mHeight);
+                d.recycle();
+            }
+
+            @Override
+            public void onPicoImgError(PicoImgRequest r, Throwable e)
+            {
+            }
+        };
+        t.runAsync();
+    }
+
+    @SuppressWarnings("deprecation")
+    private void onLayoutDone()
+    {
+        // runs once, either on the layout or on cancel
+        if (null == mLayoutListener)
+            return;
+        mTargetView.getViewTreeObserver().removeGlobalOnLayoutListener(mLayoutListener);
+        mLayoutListener = null;
+        mWaitForLayout = false;
+        PicoImg.untrack(this);
+
+        // report the cancellation the usual way
+        if (mCancelled)
+        {
+            mDone = true;
+            run();
+            return;
+        }
+
+        // wrap_content view has nothing to show yet, it can grow up to its parent
+        View v = mTargetView;
+        if (((v.getWidth() <= 0) || (v.getHeight() <= 0)) && (v.getParent() instanceof View))
+            v = (View) v.getParent();
+        mResizeWidth = Math.max(0, v.getWidth());
+        mResizeHeight = Math.max(0, v.getHeight());
+        runAsync();
     }
 
     public void cancel()
     {
         this.mCancelled = true;
+        if (null != mThumbnail)
+            mThumbnail.cancel();
+
+        // paused request never gets to the worker, finish it here
+        if (PicoImg.undispatch(this))
+        {
+            mDone = true;
+            PicoImg.sHandler.post(this);
+        }
+
+        // stop waiting for the layout that may never come
+        if (mWaitForLayout)
+        {
+            PicoImg.sHandler.post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    onLayoutDone();
+                }
+            });
+        }
+    }
+
+    public int getSampleSize()
+    {
+        // subsampling applied to the source, including the one forced by the memory budget
+        return (null != mResult) ? (1 << mResult.mScaleShift) : 1;
     }
 
     public PicoImgRequest setAppId(int appId)
@@ -552,6 +891,51 @@ public class PicoImgRequest implements Runnable
         return mAppObj;
     }
 
+    private AnimState.SourceOpener getSourceOpener(final File file)
+    {
+        // the cached state outlives the request, don't let it hold the request or its view
+        final Resources res = mContext.getResources();
+        final int resId = mInputResId;
+        final String asset = mInputAsset;
+        if (0 != resId)
+        {
+            return new AnimState.SourceOpener()
+            {
+                @Override
+                public InputStream open()
+                {
+                    return res.openRawResource(resId);
+                }
+            };
+        }
+        if (!TextUtils.isEmpty(asset))
+        {
+            return new AnimState.SourceOpener()
+            {
+                @Override
+                public InputStream open() throws IOException
+                {
+                    return res.getAssets().open(asset);
+                }
+            };
+        }
+        if (null == file)
+            return null;
+        // a newer download may replace the cache file, the offset is no good for it
+        final long length = file.length();
+        final long modified = file.lastModified();
+        return new AnimState.SourceOpener()
+        {
+            @Override
+            public InputStream open() throws IOException
+            {
+                if ((file.length() != length) || (file.lastModified() != modified))
+                    throw new IOException("Cache file has changed: " + file.getAbsolutePath());
+                return new FileInputStream(file);
+            }
+        };
+    }
+
     private void generateRamKey()
     {
         if (TextUtils.isEmpty(mInputKey))
@@ -561,6 +945,17 @@ public class PicoImgRequest implements Runnable
             mRamKey = mInputKey;
             if (mDisableAnimation)
                 mRamKey += "#noanim";
+            if (mExactSize || ((mScaleType & PicoImg.SCALE_S_MASK) == PicoImg.SCALE_CROP))
+                mRamKey += (mExactSize ? "#exact" : "#crop") + mResizeWidth + "x" + mResizeHeight + "s" + mScaleType;
+            if (mTiled)
+                mRamKey += "#tiled";
+            if (null != mTransforms)
+                for (Transformation t: mTransforms)
+                    mRamKey += "#" + t.getKey();
+            if (null != mConfig)
+                mRamKey += "#" + mConfig.name();
+            else if (mAutoConfig)
+                mRamKey += "#auto";
         }
     }
 
@@ -574,8 +969,10 @@ public class PicoImgRequest implements Runnable
         BaseState state = cachedRef.get();
         if (null == state)
             return;
-        // cached image is downsampled and we have higher resolution target
-        if ((state.mScaleShift > 0) && ((state.mWidth < mResizeWidth) || (state.mHeight < mResizeHeight) || ((mResizeWidth == 0) && (mResizeHeight == 0))))
+        // cached image is downsampled for a smaller target and we have higher resolution one
+        // the budget would force the same downsampling on a new decode, that part doesn't count
+        int width = state.mWidth << state.mBudgetShift, height = state.mHeight << state.mBudgetShift;
+        if ((state.mScaleShift > state.mBudgetShift) && ((width < mResizeWidth) || (height < mResizeHeight) || ((mResizeWidth == 0) && (mResizeHeight == 0))))
             return;
         // ok
         mResult = state;
@@ -0,0 +1,51 @@
+package in.cpp.picoimg;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// FIFO worker pool where high priority requests (thumbnails) jump ahead of everything queued
+class PriorityExecutor extends ThreadPoolExecutor
+{
+    private final AtomicLong mSequence = new AtomicLong();
+
+    private static class Task implements Runnable, Comparable<Task>
+    {
+        final Runnable mRunnable;
+        final boolean mHighPriority;
+        final long mSequence;
+
+        Task(Runnable runnable, long sequence)
+        {
+            mRunnable = runnable;
+            mHighPriority = (runnable instanceof PicoImgRequest) && ((PicoImgRequest) runnable).mHighPriority;
+            mSequence = sequence;
+        }
+
+        @Override
+        public void run()
+        {
+            mRunnable.run();
+        }
+
+        @Override
+        public int compareTo(Task other)
+        {
+            if (mHighPriority != other.mHighPriority)
+                return mHighPriority ? -1 : 1;
+            return (mSequence < other.mSequence) ? -1 : ((mSequence == other.mSequence) ? 0 : 1);
+        }
+    }
+
+    PriorityExecutor(int threads)
+    {
+        super(threads, threads, 10, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>());
+    }
+
+    @Override
+    public void execute(Runnable command)
+    {
+        super.execute(new Task(command, mSequence.incrementAndGet()));
+    }
+}
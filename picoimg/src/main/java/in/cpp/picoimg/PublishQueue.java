@@ -0,0 +1,89 @@
+package in.cpp.picoimg;
+
+import android.annotation.SuppressLint;
+import android.os.Build;
+import android.view.Choreographer;
+
+import java.util.LinkedList;
+
+// Hands finished requests to the UI thread, limited number per display frame
+class PublishQueue
+{
+    private static final long FRAME_MILLIS = 16;
+
+    private static final LinkedList<Runnable> sQueue = new LinkedList<>();
+    private static volatile int sMaxPerFrame = 4;
+    private static boolean sScheduled;
+    private static Object sVsync;
+
+    private static final Runnable sKick = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN)
+                postVsync();
+            else
+                drain();
+        }
+    };
+
+    @SuppressLint("NewApi")
+    private static void postVsync()
+    {
+        if (null == sVsync)
+        {
+            sVsync = new Choreographer.FrameCallback()
+            {
+                @Override
+                public void doFrame(long frameTimeNanos)
+                {
+                    drain();
+                }
+            };
+        }
+        Choreographer.getInstance().postFrameCallback((Choreographer.FrameCallback) sVsync);
+    }
+
+    static void setMaxPerFrame(int max)
+    {
+        sMaxPerFrame = max;
+    }
+
+    static void post(Runnable r)
+    {
+        synchronized (sQueue)
+        {
+            sQueue.add(r);
+            if (sScheduled)
+                return;
+            sScheduled = true;
+        }
+        PicoImg.sHandler.post(sKick);
+    }
+
+    private static void drain()
+    {
+        int max = sMaxPerFrame;
+        for (int i = 0; (max <= 0) || (i < max); ++i)
+        {
+            Runnable r;
+            synchronized (sQueue)
+            {
+                r = sQueue.poll();
+                if (null == r)
+                {
+                    sScheduled = false;
+                    return;
+                }
+            }
+            r.run();
+        }
+
+        // the rest waits for the next frame
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN)
+            postVsync();
+        else
+            PicoImg.sHandler.postDelayed(sKick, FRAME_MILLIS);
+    }
+}
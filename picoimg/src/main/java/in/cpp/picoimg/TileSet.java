@@ -0,0 +1,157 @@
+package in.cpp.picoimg;
+
+import android.annotation.SuppressLint;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.drawable.Drawable;
+
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+// Huge image split into texture-sized parts, decoded only when they become visible
+@SuppressLint("NewApi")
+class TileSet
+{
+    // the smallest texture size limit found on real devices
+    static final int MAX_TEXTURE_SIZE = 2048;
+    private static final int TILE_SIZE = 512;
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final BitmapRegionDecoder mDecoder;
+    private final int mSampleShift;
+    private final int mFullWidth;
+    private final int mFullHeight;
+    private final int mCols;
+    private final int mRows;
+    private final SoftReference<Bitmap>[] mTiles;
+    private final boolean[] mPending;
+    // failed decodes are retried on the next draws, then the preview is left to cover the tile
+    private final byte[] mFailures;
+    // every drawable sharing the state, ui thread only
+    private final Map<Drawable, Boolean> mClients = new WeakHashMap<>();
+
+    // drawing
+    private final Matrix mMatrix = new Matrix();
+    private final Matrix mInverse = new Matrix();
+    private final Rect mClip = new Rect();
+    private final RectF mVisible = new RectF();
+
+    @SuppressWarnings("unchecked")
+    TileSet(BitmapRegionDecoder decoder, int sampleShift, int fullWidth, int fullHeight)
+    {
+        mDecoder = decoder;
+        mSampleShift = sampleShift;
+        mFullWidth = fullWidth;
+        mFullHeight = fullHeight;
+        mCols = ((fullWidth >> sampleShift) + TILE_SIZE - 1) / TILE_SIZE;
+        mRows = ((fullHeight >> sampleShift) + TILE_SIZE - 1) / TILE_SIZE;
+        mTiles = new SoftReference[mCols * mRows];
+        mPending = new boolean[mCols * mRows];
+        mFailures = new byte[mCols * mRows];
+    }
+
+    private Bitmap getTile(int index)
+    {
+        return (null != mTiles[index]) ? mTiles[index].get() : null;
+    }
+
+    void draw(Canvas canvas, Bitmap preview, Matrix matrix, Paint paint, Drawable who)
+    {
+        mClients.put(who, Boolean.TRUE);
+
+        // tiles are needed only when the preview gets magnified on the screen
+        float previewScaleX = (float) (mFullWidth >> mSampleShift) / preview.getWidth();
+        float previewScaleY = (float) (mFullHeight >> mSampleShift) / preview.getHeight();
+        int col0 = 0, col1 = -1, row0 = 0, row1 = -1;
+        boolean complete = false;
+        if ((matrix.mapRadius(Math.max(previewScaleX, previewScaleY)) > 1) && matrix.invert(mInverse) && canvas.getClipBounds(mClip))
+        {
+            mVisible.set(mClip);
+            mInverse.mapRect(mVisible);
+            col0 = Math.max(0, (int) (mVisible.left / TILE_SIZE));
+            col1 = Math.min(mCols - 1, (int) (mVisible.right / TILE_SIZE));
+            row0 = Math.max(0, (int) (mVisible.top / TILE_SIZE));
+            row1 = Math.min(mRows - 1, (int) (mVisible.bottom / TILE_SIZE));
+            complete = true;
+            for (int row = row0; complete && (row <= row1); ++row)
+                for (int col = col0; complete && (col <= col1); ++col)
+                    complete = (null != getTile(row * mCols + col));
+        }
+
+        // preview fills the gaps while the tiles are loading
+        if (!complete)
+        {
+            mMatrix.set(matrix);
+            mMatrix.preScale(previewScaleX, previewScaleY);
+            canvas.drawBitmap(preview, mMatrix, paint);
+        }
+        for (int row = row0; row <= row1; ++row)
+        {
+            for (int col = col0; col <= col1; ++col)
+            {
+                Bitmap bm = getTile(row * mCols + col);
+                if (null == bm)
+                {
+                    requestTile(row * mCols + col);
+                    continue;
+                }
+                mMatrix.set(matrix);
+                mMatrix.preTranslate(col * TILE_SIZE, row * TILE_SIZE);
+                canvas.drawBitmap(bm, mMatrix, paint);
+            }
+        }
+    }
+
+    private void requestTile(final int index)
+    {
+        if (mPending[index] || (mFailures[index] >= MAX_ATTEMPTS))
+            return;
+        mPending[index] = true;
+        PicoImg.sExecutor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                int size = TILE_SIZE << mSampleShift;
+                int x = (index % mCols) * size, y = (index / mCols) * size;
+                BitmapFactory.Options opts = new BitmapFactory.Options();
+                opts.inSampleSize = 1 << mSampleShift;
+                Bitmap bm = null;
+                try
+                {
+                    bm = mDecoder.decodeRegion(new Rect(x, y, Math.min(mFullWidth, x + size), Math.min(mFullHeight, y + size)), opts);
+                }
+                catch (Throwable e)
+                {
+                    e.printStackTrace();
+                }
+                final Bitmap tile = bm;
+                PicoImg.sHandler.post(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        mPending[index] = false;
+                        // the preview keeps covering a failed tile, the next draw may try it again
+                        if (null == tile)
+                        {
+                            ++mFailures[index];
+                            return;
+                        }
+                        mTiles[index] = new SoftReference<>(tile);
+                        for (Drawable d: new ArrayList<>(mClients.keySet()))
+                            d.invalidateSelf();
+                    }
+                });
+            }
+        });
+    }
+}
@@ -0,0 +1,347 @@
+package in.cpp.picoimg;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+class WebPState extends AnimState
+{
+    // fourcc codes as little endian ints
+    private static final int CHUNK_RIFF = 0x46464952;
+    private static final int CHUNK_WEBP = 0x50424557;
+    private static final int CHUNK_VP8X = 0x58385056;
+    private static final int CHUNK_ANIM = 0x4D494E41;
+    private static final int CHUNK_ANMF = 0x464D4E41;
+    private static final int CHUNK_ALPH = 0x48504C41;
+    private static final int CHUNK_VP8L = 0x4C385056;
+
+    private static final int VP8X_ALPHA = 0x10;
+    private static final int VP8X_ANIMATION = 0x02;
+
+    private static class WebPFrame extends Frame
+    {
+        byte[] mData;
+        long mFilePos;
+        int mFileLen;
+        boolean mExtended;
+    }
+
+    // parser state
+    private CountingInputStream mCounter;
+    private long mRiffLeft;
+
+    //region LOADER
+    private static int read_ubyte(InputStream inp) throws IOException
+    {
+        int b1 = inp.read();
+        if (b1 == -1)
+            throw new IOException("Unexpected end of file");
+        return b1;
+    }
+
+    private static int read_uint24_le(InputStream inp) throws IOException
+    {
+        int b1 = inp.read();
+        int b2 = inp.read();
+        int b3 = inp.read();
+        if ((b1 == -1) || (b2 == -1) || (b3 == -1))
+            throw new IOException("Unexpected end of file");
+        return (b3 << 16) | (b2 << 8) | b1;
+    }
+
+    private static int read_int_le(InputStream inp) throws IOException
+    {
+        int b1 = inp.read();
+        int b2 = inp.read();
+        int b3 = inp.read();
+        int b4 = inp.read();
+        if ((b1 == -1) || (b2 == -1) || (b3 == -1) || (b4 == -1))
+            throw new IOException("Unexpected end of file");
+        return (b4 << 24) | (b3 << 16) | (b2 << 8) | b1;
+    }
+
+    private static void read_bytes(InputStream inp, byte[] buffer, int offset, int length) throws IOException
+    {
+        while (length > 0)
+        {
+            int res = inp.read(buffer, offset, length);
+            if (res < 1)
+                throw new IOException("Unexpected end of file");
+            length -= res;
+            offset += res;
+        }
+    }
+
+    private static int get_int_le(byte[] buffer, int pos)
+    {
+        return (buffer[pos] & 0xFF) | ((buffer[pos + 1] & 0xFF) << 8) | ((buffer[pos + 2] & 0xFF) << 16) | ((buffer[pos + 3] & 0xFF) << 24);
+    }
+
+    private static int write_uint24_le(byte[] buffer, int pos, int data)
+    {
+        buffer[pos++] = (byte) (data & 0xFF);
+        buffer[pos++] = (byte) ((data >> 8) & 0xFF);
+        buffer[pos++] = (byte) ((data >> 16) & 0xFF);
+        return pos;
+    }
+
+    private static int write_int_le(byte[] buffer, int pos, int data)
+    {
+        pos = write_uint24_le(buffer, pos, data);
+        buffer[pos++] = (byte) ((data >> 24) & 0xFF);
+        return pos;
+    }
+
+    WebPState(InputStream inp, int targetWidth, int targetHeight, File streamFile, int stateFlags, Bitmap.Config config) throws IOException
+    {
+        super(config, stateFlags);
+
+        // streaming keeps frame data in the file, we only need to know where it is
+        if (null != streamFile)
+        {
+            openSource(streamFile);
+            inp = mCounter = new CountingInputStream(inp);
+        }
+
+        // check header
+        if (CHUNK_RIFF != read_int_le(inp))
+            throw new IOException("Invalid WebP header");
+        mRiffLeft = read_int_le(inp) & 0xFFFFFFFFL;
+        if (CHUNK_WEBP != read_int_le(inp))
+            throw new IOException("Invalid WebP header");
+        mRiffLeft -= 4;
+
+        // read chunks, progressive loading stops after the first frame
+        try
+        {
+            Frame f;
+            while (null != (f = parseFrame(inp)))
+            {
+                if (null == mFrames)
+                    mFrames = new ArrayList<>(32);
+                mFrames.add(f);
+                if (0 != (stateFlags & (FLAG_PROGRESSIVE | FLAG_FIRST_FRAME)))
+                {
+                    mParseInput = inp;
+                    mLoading = true;
+                    break;
+                }
+            }
+        }
+        catch (Throwable e)
+        {
+            if ((mFrames != null) && (mFrames.size() > 0))
+                e.printStackTrace();
+            else
+                throw e;
+        }
+        if ((targetWidth > 0) || (targetHeight > 0))
+            scaleToTarget(targetWidth, targetHeight);
+        fitToBudget(4, isAnimated() ? CANVAS_BUFFERS : 1);
+
+        // load the first bitmap and prepare for animation rendering
+        if (null != mFrames)
+        {
+            Frame first = mFrames.get(0);
+
+            // move the compressed data out of the heap
+            if (mOffHeap && ((mFrames.size() > 1) || mLoading))
+                for (Frame f: mFrames)
+                    packFrame(f);
+
+            Bitmap bm = loadFrame(first);
+            if (null != bm)
+            {
+                first.mBitmap = new SoftReference<>(bm);
+                initPlayback();
+            }
+
+            // don't animate static image
+            if ((mFrames.size() == 1) && !mLoading)
+            {
+                mNextFrameTime = 0;
+                mFrames = null;
+                if ((null != mOutput) && useHardware(config, stateFlags))
+                    toHardware();
+            }
+        }
+
+        // final check
+        if (null == mOutput)
+            throw new IOException("Decoder failed unexpectedly");
+    }
+
+    @Override
+    Frame parseFrame(InputStream inp) throws IOException
+    {
+        while (mRiffLeft >= 8)
+        {
+            int type = read_int_le(inp);
+            int len = read_int_le(inp);
+            int pad = len & 1;
+            mRiffLeft -= 8 + len + pad;
+
+            // handle known chunks
+            if ((CHUNK_VP8X == type) && (len >= 10))
+            {
+                read_int_le(inp); // flags
+                mWidth = 1 + read_uint24_le(inp);
+                mHeight = 1 + read_uint24_le(inp);
+                skipBytes(inp, len - 10 + pad);
+            }
+            else if ((CHUNK_ANIM == type) && (len >= 6))
+            {
+                // background color is only a hint, we clear to transparent like browsers do
+                read_int_le(inp);
+                mNumPlays = read_ubyte(inp) | (read_ubyte(inp) << 8);
+                skipBytes(inp, len - 6 + pad);
+            }
+            else if ((CHUNK_ANMF == type) && (len >= 16))
+            {
+                WebPFrame f = new WebPFrame();
+                f.mOffX = 2 * read_uint24_le(inp);
+                f.mOffY = 2 * read_uint24_le(inp);
+                f.mWidth = 1 + read_uint24_le(inp);
+                f.mHeight = 1 + read_uint24_le(inp);
+                f.mDelay = read_uint24_le(inp);
+                int flags = read_ubyte(inp);
+                f.mDispose = ((flags & 1) != 0) ? DISPOSE_BACKGROUND : DISPOSE_NONE;
+                f.mBlendSource = ((flags & 2) != 0);
+                readFrameData(inp, f, len - 16);
+                skipBytes(inp, pad);
+                return f;
+            }
+            else
+                skipBytes(inp, len + pad);
+        }
+        return null;
+    }
+
+    private void readFrameData(InputStream inp, WebPFrame f, int len) throws IOException
+    {
+        // frame data is a sequence of ALPH, VP8 and VP8L sub-chunks
+        byte[] head = new byte[13];
+        byte[] data = (null == mCounter) ? new byte[len] : null;
+        if (null != mCounter)
+            f.mFilePos = mCounter.getPosition();
+        int pos = 0, count = 0;
+        f.mOpaque = true;
+        while (pos + 8 <= len)
+        {
+            read_bytes(inp, head, 0, 8);
+            int type = get_int_le(head, 0);
+            int size = get_int_le(head, 4);
+            int body = size + (size & 1);
+            if ((size < 0) || (body > len - pos - 8))
+                throw new IOException("Invalid WebP frame");
+            int peek = 0;
+            if (CHUNK_ALPH == type)
+                f.mOpaque = false;
+            else if ((CHUNK_VP8L == type) && (size >= 5))
+            {
+                // lossless header keeps alpha_is_used flag right after the dimensions
+                peek = 5;
+                read_bytes(inp, head, 8, peek);
+                if ((head[12] & 0x10) != 0)
+                    f.mOpaque = false;
+            }
+            if (null != data)
+            {
+                System.arraycopy(head, 0, data, pos, 8 + peek);
+                read_bytes(inp, data, pos + 8 + peek, body - peek);
+            }
+            else
+                skipBytes(inp, body - peek);
+            pos += 8 + body;
+            ++count;
+        }
+        skipBytes(inp, len - pos);
+        f.mFileLen = pos;
+        f.mData = ((null != data) && (pos < len)) ? Arrays.copyOf(data, pos) : data;
+        // alpha needs the extended file layout to be decoded
+        f.mExtended = (count > 1);
+    }
+
+    @Override
+    int getHeapBytes(Frame frame)
+    {
+        byte[] data = ((WebPFrame) frame).mData;
+        return (null != data) ? data.length : 0;
+    }
+
+    @Override
+    void packFrame(Frame frame) throws IOException
+    {
+        WebPFrame f = (WebPFrame) frame;
+        if ((null != mCounter) || (null == f.mData))
+            return;
+        f.mFilePos = storeData(Collections.singletonList(f.mData), 0);
+        f.mData = null;
+    }
+
+    @Override
+    Bitmap loadFrame(Frame frame)
+    {
+        WebPFrame f = (WebPFrame) frame;
+        byte[] data = f.mData;
+        if (null == data)
+        {
+            data = new byte[f.mFileLen];
+            try
+            {
+                readSource(f.mFilePos, data, 0, f.mFileLen);
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+                return null;
+            }
+        }
+
+        // wrap the frame into a standalone file
+        byte[] header = new byte[f.mExtended ? 30 : 12];
+        int pos = write_int_le(header, 0, CHUNK_RIFF);
+        pos = write_int_le(header, pos, header.length - 8 + data.length);
+        pos = write_int_le(header, pos, CHUNK_WEBP);
+        if (f.mExtended)
+        {
+            pos = write_int_le(header, pos, CHUNK_VP8X);
+            pos = write_int_le(header, pos, 10);
+            pos = write_int_le(header, pos, f.mOpaque ? 0 : VP8X_ALPHA);
+            pos = write_uint24_le(header, pos, f.mWidth - 1);
+            write_uint24_le(header, pos, f.mHeight - 1);
+        }
+
+        // decode the resulting data
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = 1 << mScaleShift;
+        Bitmap.Config config = getFrameConfig(f);
+        if (null != config)
+            options.inPreferredConfig = config;
+        return BitmapFactory.decodeStream(new MultipleArrayInputStream(new byte[][] {header, data}), null, options);
+    }
+    //endregion
+
+    static boolean check(InputStream inp) throws IOException
+    {
+        // alpha and lossless frames can't be decoded before 4.3
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2)
+            return false;
+        byte[] buf = new byte[21];
+        int len = 0, res;
+        inp.mark(buf.length);
+        while ((len < buf.length) && ((res = inp.read(buf, len, buf.length - len)) > 0))
+            len += res;
+        inp.reset();
+        return (len == buf.length) && (CHUNK_RIFF == get_int_le(buf, 0)) && (CHUNK_WEBP == get_int_le(buf, 8)) && (CHUNK_VP8X == get_int_le(buf, 12)) && ((buf[20] & VP8X_ANIMATION) != 0);
+    }
+}
@@ -0,0 +1,153 @@
+package in.cpp.picoimg;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AnimStateTest
+{
+    private static final int CANVAS = 1080;
+
+    private static AnimState.Frame frame(int x, int y, int width, int height, int dispose)
+    {
+        AnimState.Frame f = new AnimState.Frame();
+        f.mOffX = x;
+        f.mOffY = y;
+        f.mWidth = width;
+        f.mHeight = height;
+        f.mDispose = dispose;
+        return f;
+    }
+
+    // sticker on a full size background, partly and fully outside of the canvas too
+    private static List<AnimState.Frame> stickerFrames()
+    {
+        List<AnimState.Frame> frames = new ArrayList<>();
+        frames.add(frame(0, 0, CANVAS, CANVAS, AnimState.DISPOSE_NONE));
+        frames.add(frame(100, 100, 120, 120, AnimState.DISPOSE_PREVIOUS));
+        frames.add(frame(500, 300, 120, 120, AnimState.DISPOSE_PREVIOUS));
+        frames.add(frame(1020, 1020, 120, 120, AnimState.DISPOSE_PREVIOUS));
+        frames.add(frame(2000, 0, 120, 120, AnimState.DISPOSE_PREVIOUS));
+        frames.add(frame(-50, 0, 200, 100, AnimState.DISPOSE_PREVIOUS));
+        return frames;
+    }
+
+    // the backup bookkeeping of a real state, pixel copies need a device
+    private static class BackupState extends AnimState
+    {
+        BackupState(int width, int height)
+        {
+            super(null, 0);
+            mCanvasWidth = width;
+            mCanvasHeight = height;
+            mCanvasPixelBytes = 4;
+            mPrevRect = new Rect();
+        }
+
+        @Override
+        Bitmap loadFrame(Frame f)
+        {
+            return null;
+        }
+
+        @Override
+        int getHeapBytes(Frame f)
+        {
+            return 0;
+        }
+
+        @Override
+        Frame parseFrame(InputStream inp)
+        {
+            return null;
+        }
+
+        @Override
+        void packFrame(Frame f)
+        {
+        }
+
+        @Override
+        void copyToBackup(int width, int height)
+        {
+        }
+
+        @Override
+        void copyFromBackup(int width, int height)
+        {
+        }
+    }
+
+    // bytes copied to the backup and back for one frame
+    private static long frameBytes(BackupState state, AnimState.Frame f)
+    {
+        long before = state.mBackupBytes;
+        state.mPrevRect.left = f.mOffX;
+        state.mPrevRect.top = f.mOffY;
+        state.mPrevRect.right = f.mOffX + f.mWidth;
+        state.mPrevRect.bottom = f.mOffY + f.mHeight;
+        state.savePrevPixels();
+        state.restorePrevPixels();
+        return state.mBackupBytes - before;
+    }
+
+    @Test
+    public void backupAreaIsClippedToCanvas()
+    {
+        assertEquals(120 * 120, AnimState.backupArea(100, 100, 220, 220, CANVAS, CANVAS));
+        assertEquals(60 * 60, AnimState.backupArea(1020, 1020, 1140, 1140, CANVAS, CANVAS));
+        assertEquals(150 * 100, AnimState.backupArea(-50, 0, 150, 100, CANVAS, CANVAS));
+        assertEquals(0, AnimState.backupArea(2000, 0, 2120, 120, CANVAS, CANVAS));
+        assertEquals(0, AnimState.backupArea(100, 100, 100, 220, CANVAS, CANVAS));
+    }
+
+    @Test
+    public void backupBytesPerFrame()
+    {
+        BackupState state = new BackupState(CANVAS, CANVAS);
+        List<AnimState.Frame> frames = stickerFrames();
+        long canvas = 2L * CANVAS * CANVAS * 4;
+
+        // the whole canvas used to go both ways for every dispose-to-previous frame
+        assertEquals(2L * 14400 * 4, frameBytes(state, frames.get(1)));
+        assertEquals(2L * 14400 * 4, frameBytes(state, frames.get(2)));
+        assertEquals(2L * 3600 * 4, frameBytes(state, frames.get(3)));
+        assertEquals(0, frameBytes(state, frames.get(4)));
+        assertEquals(2L * 15000 * 4, frameBytes(state, frames.get(5)));
+        assertTrue(frameBytes(state, frames.get(1)) * 50 < canvas);
+
+        // clipped area is what gets restored too
+        frameBytes(state, frames.get(3));
+        assertEquals(1020, state.mPrevRect.left);
+        assertEquals(CANVAS, state.mPrevRect.right);
+        assertEquals(CANVAS, state.mPrevRect.bottom);
+
+        // subsampled canvas backs up the subsampled frame area
+        BackupState half = new BackupState(CANVAS / 2, CANVAS / 2);
+        assertEquals(2L * 3750 * 4, frameBytes(half, frame(-25, 0, 100, 50, AnimState.DISPOSE_PREVIOUS)));
+    }
+
+    @Test
+    public void animationIsBudgetedForAllCanvasBuffers()
+    {
+        // 1080x1080 argb is 4.6MB, give it 8MB
+        long budget = 8L << 20;
+        int still = BaseState.budgetShift(CANVAS, CANVAS, 4, AnimState.canvasBuffers(1, false), budget);
+        int anim = BaseState.budgetShift(CANVAS, CANVAS, 4, AnimState.canvasBuffers(stickerFrames().size(), false), budget);
+        assertEquals(0, still);
+        assertEquals(1, anim);
+
+        // first frame of a progressive load doesn't know the count yet
+        assertEquals(AnimState.CANVAS_BUFFERS, AnimState.canvasBuffers(1, true));
+        assertEquals(1, AnimState.canvasBuffers(0, false));
+        assertEquals(0, BaseState.budgetShift(CANVAS, CANVAS, 4, AnimState.CANVAS_BUFFERS, 0));
+    }
+}
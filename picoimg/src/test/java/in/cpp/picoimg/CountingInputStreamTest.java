@@ -0,0 +1,46 @@
+package in.cpp.picoimg;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+public class CountingInputStreamTest
+{
+    @Test
+    public void countingStreamTracksPosition() throws IOException
+    {
+        CountingInputStream inp = new CountingInputStream(new ByteArrayInputStream(new byte[100]));
+        inp.read();
+        inp.read(new byte[10], 0, 10);
+        assertEquals(11, inp.getPosition());
+        AnimState.skipBytes(inp, 20);
+        assertEquals(31, inp.getPosition());
+        inp.mark(50);
+        inp.read(new byte[40], 0, 40);
+        assertEquals(71, inp.getPosition());
+        inp.reset();
+        assertEquals(31, inp.getPosition());
+        assertEquals(69, inp.read(new byte[100], 0, 100));
+        assertEquals(100, inp.getPosition());
+    }
+
+    @Test
+    public void reopenedStreamContinuesAtOffset() throws IOException
+    {
+        byte[] data = new byte[100];
+        for (int i = 0; i < data.length; ++i)
+            data[i] = (byte) i;
+        // the way a suspended animation closes its stream and resumes on a reopened one
+        CountingInputStream inp = new CountingInputStream(new ByteArrayInputStream(data));
+        inp.read(new byte[37], 0, 37);
+        inp.close();
+        ByteArrayInputStream reopened = new ByteArrayInputStream(data);
+        AnimState.skipBytes(reopened, inp.getPosition());
+        inp.swap(reopened);
+        assertEquals(37, inp.read());
+        assertEquals(38, inp.getPosition());
+    }
+}
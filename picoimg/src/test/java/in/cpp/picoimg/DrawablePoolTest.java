@@ -0,0 +1,93 @@
+package in.cpp.picoimg;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+public class DrawablePoolTest
+{
+    private static final int ROWS = 12;
+
+    @Before
+    public void reset()
+    {
+        DrawablePool.setCapacity(16);
+        DrawablePool.trim(0);
+    }
+
+    // the way cycleDrawable() swaps drawables in a view
+    private static PicoDrawable bind(PicoDrawable prev)
+    {
+        PicoDrawable d = DrawablePool.acquire();
+        d.mDetached = false;
+        if (null != prev)
+        {
+            prev.mDetached = true;
+            prev.recycle();
+        }
+        return d;
+    }
+
+    @Test
+    public void poolStaysBoundedOverLongScroll()
+    {
+        PicoDrawable[] rows = new PicoDrawable[ROWS];
+        Set<PicoDrawable> created = Collections.newSetFromMap(new IdentityHashMap<PicoDrawable, Boolean>());
+        for (int i = 0; i < 10000; ++i)
+        {
+            int row = i % ROWS;
+            rows[row] = bind(rows[row]);
+            created.add(rows[row]);
+            assertTrue(DrawablePool.getSize() <= DrawablePool.getCapacity());
+        }
+        // one spare per row at most, the rest comes from the pool
+        assertTrue(created.size() <= ROWS + 1);
+
+        // a fling lets every row go at once, the pool keeps only its capacity
+        DrawablePool.setCapacity(4);
+        for (int row = 0; row < ROWS; ++row)
+        {
+            rows[row].mDetached = true;
+            rows[row].recycle();
+        }
+        assertEquals(4, DrawablePool.getSize());
+    }
+
+    @Test
+    public void attachedDrawablesAreNotPooled()
+    {
+        PicoDrawable d = new PicoDrawable();
+        d.recycle();
+        assertEquals(0, DrawablePool.getSize());
+        assertNotSame(d, DrawablePool.acquire());
+
+        // recycled twice doesn't get handed out twice
+        d.mDetached = true;
+        d.recycle();
+        d.recycle();
+        assertEquals(1, DrawablePool.getSize());
+    }
+
+    @Test
+    public void trimKeepsRequestedCount()
+    {
+        for (int i = 0; i < 10; ++i)
+        {
+            PicoDrawable d = new PicoDrawable();
+            d.mDetached = true;
+            d.recycle();
+        }
+        assertEquals(10, DrawablePool.getSize());
+        DrawablePool.trim(DrawablePool.getCapacity() / 4);
+        assertEquals(4, DrawablePool.getSize());
+        DrawablePool.trim(0);
+        assertEquals(0, DrawablePool.getSize());
+    }
+}
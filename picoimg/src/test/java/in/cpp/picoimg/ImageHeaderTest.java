@@ -0,0 +1,215 @@
+package in.cpp.picoimg;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ImageHeaderTest
+{
+    // resource, asset or cache file that knows how many times it was opened
+    private static class Source
+    {
+        final byte[] mData;
+        int mOpens;
+
+        Source(byte[] data)
+        {
+            mData = data;
+        }
+
+        CountingInputStream open()
+        {
+            ++mOpens;
+            return new CountingInputStream(new ByteArrayInputStream(mData));
+        }
+    }
+
+    private static byte[] readAll(InputStream inp) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[1000];
+        int len;
+        while ((len = inp.read(buf)) > 0)
+            out.write(buf, 0, len);
+        return out.toByteArray();
+    }
+
+    private static void be(ByteArrayOutputStream out, int value, int size)
+    {
+        for (int i = size - 1; i >= 0; --i)
+            out.write(value >> (8 * i));
+    }
+
+    private static void le(ByteArrayOutputStream out, int value, int size)
+    {
+        for (int i = 0; i < size; ++i)
+            out.write(value >> (8 * i));
+    }
+
+    private static void tail(ByteArrayOutputStream out, int length)
+    {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        out.write(data, 0, data.length);
+    }
+
+    // Exif with the orientation in IFD0 and a thumbnail in IFD1, SOF0, then the scan
+    private static byte[] jpeg(int width, int height, int orientation)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        be(out, 0xFFD8, 2);
+        be(out, 0xFFE1, 2);
+        be(out, 84, 2);
+        be(out, 0x45786966, 4);
+        be(out, 0, 2);
+        // tiff header, IFD0 at 8
+        be(out, 0x4949, 2);
+        le(out, 42, 2);
+        le(out, 8, 4);
+        le(out, 1, 2);
+        le(out, 0x0112, 2);
+        le(out, 3, 2);
+        le(out, 1, 4);
+        le(out, orientation, 4);
+        le(out, 26, 4);
+        // IFD1 at 26, the thumbnail right after it
+        le(out, 2, 2);
+        le(out, 0x0201, 2);
+        le(out, 4, 2);
+        le(out, 1, 4);
+        le(out, 56, 4);
+        le(out, 0x0202, 2);
+        le(out, 4, 2);
+        le(out, 1, 4);
+        le(out, 20, 4);
+        le(out, 0, 4);
+        tail(out, 20);
+        // SOF0
+        be(out, 0xFFC0, 2);
+        be(out, 17, 2);
+        out.write(8);
+        be(out, height, 2);
+        be(out, width, 2);
+        tail(out, 12);
+        be(out, 0xFFDA, 2);
+        tail(out, 100000);
+        be(out, 0xFFD9, 2);
+        return out.toByteArray();
+    }
+
+    private static byte[] png(int width, int height)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        be(out, 0x89504E47, 4);
+        be(out, 0x0D0A1A0A, 4);
+        be(out, 13, 4);
+        be(out, 0x49484452, 4);
+        be(out, width, 4);
+        be(out, height, 4);
+        tail(out, 5000);
+        return out.toByteArray();
+    }
+
+    private static byte[] gif(int width, int height)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        be(out, 0x47494638, 4);
+        be(out, 0x3961, 2);
+        le(out, width, 2);
+        le(out, height, 2);
+        tail(out, 5000);
+        return out.toByteArray();
+    }
+
+    private static byte[] webp(int width, int height)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        be(out, 0x52494646, 4);
+        le(out, 5022, 4);
+        be(out, 0x57454250, 4);
+        be(out, 0x56503858, 4);
+        le(out, 10, 4);
+        le(out, 0, 4);
+        le(out, width - 1, 3);
+        le(out, height - 1, 3);
+        tail(out, 5000);
+        return out.toByteArray();
+    }
+
+    private static ImageHeader decode(Source source) throws IOException
+    {
+        // the way BaseState reads it: header first, then the decoder gets the replayed stream
+        ImageHeader header = new ImageHeader(source.open());
+        assertArrayEquals(source.mData, readAll(header.replay()));
+        return header;
+    }
+
+    @Test
+    public void jpegIsOpenedOnce() throws IOException
+    {
+        Source source = new Source(jpeg(4000, 3000, 6));
+        CountingInputStream inp = source.open();
+        ImageHeader header = new ImageHeader(inp);
+        assertEquals(ImageHeader.FORMAT_JPEG, header.mFormat);
+        assertEquals(4000, header.mWidth);
+        assertEquals(3000, header.mHeight);
+        assertEquals(6, header.mOrientation);
+        assertEquals(20, header.mThumbLength);
+        // the markers are walked up to SOF only, the scan is left to the decoder
+        assertTrue(inp.getPosition() < 200);
+        assertArrayEquals(source.mData, readAll(header.replay()));
+        assertEquals(1, source.mOpens);
+    }
+
+    @Test
+    public void otherFormatsAreOpenedOnce() throws IOException
+    {
+        Source source = new Source(png(640, 480));
+        ImageHeader header = decode(source);
+        assertEquals(ImageHeader.FORMAT_PNG, header.mFormat);
+        assertEquals(640, header.mWidth);
+        assertEquals(480, header.mHeight);
+        assertEquals(1, source.mOpens);
+
+        source = new Source(gif(320, 200));
+        header = decode(source);
+        assertEquals(ImageHeader.FORMAT_GIF, header.mFormat);
+        assertEquals(320, header.mWidth);
+        assertEquals(200, header.mHeight);
+        assertEquals(1, source.mOpens);
+
+        source = new Source(webp(1024, 768));
+        header = decode(source);
+        assertEquals(ImageHeader.FORMAT_WEBP, header.mFormat);
+        assertEquals(1024, header.mWidth);
+        assertEquals(768, header.mHeight);
+        assertEquals(1, source.mOpens);
+    }
+
+    @Test
+    public void unknownFormatIsReplayed() throws IOException
+    {
+        // the bounds decode looks at the buffered prefix, the decoder still gets everything
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        tail(out, 100000);
+        Source source = new Source(out.toByteArray());
+        ImageHeader header = decode(source);
+        assertEquals(ImageHeader.FORMAT_UNKNOWN, header.mFormat);
+        assertEquals(64 * 1024, readAll(header.buffered()).length);
+        assertEquals(1, source.mOpens);
+
+        // short files are replayed as they are
+        source = new Source(new byte[] {1, 2, 3});
+        header = decode(source);
+        assertEquals(ImageHeader.FORMAT_UNKNOWN, header.mFormat);
+        assertEquals(1, source.mOpens);
+    }
+}